@@ -7,18 +7,24 @@ import com.abchina.util.ProxyUtil;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.util.internal.PlatformDependent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 
 /**
  * 一个抽象的netty服务端
  */
 public abstract class AbstractNettyServer implements Runnable{
+    private static Logger log = LoggerFactory.getLogger(AbstractNettyServer.class);
     ThreadLocal<String> threadLocal = new ThreadLocal<>();
     private String name;
     private ServerBootstrap bootstrap;
@@ -27,11 +33,15 @@ public abstract class AbstractNettyServer implements Runnable{
     private EventLoopGroup worker;
     private ChannelFactory<?extends ServerChannel> channelFactory;
     private ChannelInitializer<?extends Channel> initializerChannelHandler;
-    private Map<String, ChannelInitializer<?extends Channel>> initializerMap;
     private ChannelFuture closeFuture;
-    private Channel serverChannel;
+    //stop()可能在其他线程调用
+    private final List<Channel> serverChannels = new CopyOnWriteArrayList<>();
     private InetSocketAddress socketAddress;
     private boolean enableEpoll;
+    //监听同一端口的server channel数量，大于1时使用SO_REUSEPORT，每个channel独占一个boss线程，由内核分摊accept
+    private int acceptorCount = 1;
+    //线程数与socket参数
+    private NettyServerTuning tuning = new NettyServerTuning();
 
     public AbstractNettyServer(){}
 
@@ -41,22 +51,16 @@ public abstract class AbstractNettyServer implements Runnable{
 
     public AbstractNettyServer(InetSocketAddress address) {
         super();
-        this.enableEpoll = HostUtil.isLinux();
+        //epoll的native库与Unsafe都可用时才使用，否则退回NIO
+        this.enableEpoll = HostUtil.isLinux() && Epoll.isAvailable() && PlatformDependent.hasUnsafe();
         this.socketAddress = address;
         this.name = NamespaceUtil.newIdName(this.getClass(),"nettyServer");
         this.bootstrap = newServerBootstrap();
-        this.boss = newBossEventLoopGroup();
-        this.worker = newWorkerEventLoopGroup();
         this.channelFactory = newServerChannelFactory();
         this.initializerChannelHandler = newInitializerChannelHandler();
     }
 
-    public void setInitializerMap(Map<String, ChannelInitializer<? extends Channel>> initializerMap) {
-        this.initializerMap = initializerMap;
-    }
-
     protected abstract ChannelInitializer<?extends Channel> newInitializerChannelHandler();
-    protected abstract Map<String, ChannelInitializer<?extends Channel>> newInitializerChannelHandlerMap();
 
     protected ServerBootstrap newServerBootstrap(){
         return new NettyServerBootstrap();
@@ -64,7 +68,7 @@ public abstract class AbstractNettyServer implements Runnable{
 
     protected EventLoopGroup newWorkerEventLoopGroup() {
         EventLoopGroup worker;
-        int nEventLoopCount = Runtime.getRuntime().availableProcessors() * 2;
+        int nEventLoopCount = tuning.getWorkerThreads();
         if(enableEpoll){
             worker = new EpollEventLoopGroup(nEventLoopCount);
         }else {
@@ -77,7 +81,7 @@ public abstract class AbstractNettyServer implements Runnable{
     protected EventLoopGroup newBossEventLoopGroup() {
         EventLoopGroup boss;
         if(enableEpoll){
-            boss = new EpollEventLoopGroup(1);
+            boss = new EpollEventLoopGroup(getEffectiveAcceptorCount());
         }else {
             NioEventLoopBossGroup jdkBoss = new NioEventLoopBossGroup(1);
             boss = ProxyUtil.newProxyByJdk(jdkBoss, jdkBoss.toString(), true);
@@ -96,53 +100,112 @@ public abstract class AbstractNettyServer implements Runnable{
         return channelFactory;
     }
 
+    /**
+     * 开启SO_REUSEPORT多acceptor模式，只在Linux的epoll传输上生效
+     * 绑定N个监听同一端口的EpollServerSocketChannel，各自注册到独立的boss线程，内核按连接把accept分摊到各个channel，
+     * 适合大量短连接（不使用keep-alive）的场景；需要在启动前设置
+     * @param acceptorCount server channel数量，1为普通的单channel监听
+     */
+    public void setAcceptorCount(int acceptorCount) {
+        if (acceptorCount < 1) {
+            throw new IllegalArgumentException("acceptorCount must be positive: " + acceptorCount);
+        }
+        this.acceptorCount = acceptorCount;
+    }
+
+    public int getAcceptorCount() {
+        return acceptorCount;
+    }
+
+    /**
+     * @param tuning 线程数与socket参数，需要在启动前设置
+     */
+    public void setTuning(NettyServerTuning tuning) {
+        this.tuning = tuning;
+    }
+
+    public NettyServerTuning getTuning() {
+        return tuning;
+    }
+
+    /**
+     * @return 实际绑定的server channel数量，非epoll时总是1
+     */
+    private int getEffectiveAcceptorCount() {
+        return enableEpoll ? acceptorCount : 1;
+    }
+
     @Override
     public final void run() {
+        int acceptors = getEffectiveAcceptorCount();
+        if (acceptorCount > acceptors) {
+            log.warn("SO_REUSEPORT需要epoll传输，忽略acceptorCount={}，使用单个server channel", acceptorCount);
+        }
+        //boss线程数取决于acceptor数量，worker线程数取决于tuning，启动时才创建
+        boss = newBossEventLoopGroup();
+        worker = newWorkerEventLoopGroup();
+        tuning.configure(bootstrap);
+        log.info("{} epoll={} acceptors={}", tuning, enableEpoll, acceptors);
+        if (acceptors > 1) {
+            bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
 
         bootstrap
                 .group(boss, worker)
                 .channelFactory(channelFactory)
-                .childHandler(initializerMap.get(Thread.currentThread().getName()))
-                .option(ChannelOption.TCP_NODELAY, true)
-                .option(ChannelOption.SO_REUSEADDR, true)
-                .option(ChannelOption.SO_BACKLOG, 128) // determining the number of connections queued
-                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
-                .childOption(ChannelOption.SO_KEEPALIVE, Boolean.TRUE);
+                .childHandler(initializerChannelHandler)
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
 
         try {
-            ChannelFuture channelFuture = bootstrap.bind(socketAddress);
-            //堵塞
-            channelFuture.await();
-            //唤醒后获取异常
-            Throwable cause = channelFuture.cause();
+            //每次bind新建一个server channel，按轮询注册到boss的下一个线程
+            Throwable cause = null;
+            for (int i = 0; i < acceptors && cause == null; i++) {
+                ChannelFuture channelFuture = bootstrap.bind(socketAddress);
+                //堵塞
+                channelFuture.await();
+                //唤醒后获取异常
+                cause = channelFuture.cause();
+                if (cause == null) {
+                    serverChannels.add(channelFuture.channel());
+                }
+            }
 
             startAfter(cause);
 
-            //没异常就 堵塞住close的回调
+            //没异常就 堵塞住close的回调，任一server channel关闭即停止服务
             if(cause == null) {
-                serverChannel = channelFuture.channel();
-                closeFuture = serverChannel.closeFuture();
+                closeFuture = serverChannels.get(0).closeFuture();
+                for (Channel serverChannel : serverChannels) {
+                    serverChannel.closeFuture().addListener(future -> closeServerChannels());
+                }
                 closeFuture.sync();
             }
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
             try {
+                closeServerChannels();
                 boss.shutdownGracefully().sync();
                 worker.shutdownGracefully().sync();
-                serverChannel.close();
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
         }
     }
 
-    public void stop() {
-        if(closeFuture != null) {
-            closeFuture.notify();
+    private void closeServerChannels() {
+        for (Channel serverChannel : serverChannels) {
+            serverChannel.close();
         }
     }
 
+    /**
+     * 关闭server channel，run()随之返回并关闭boss与worker线程
+     */
+    public void stop() {
+        closeServerChannels();
+    }
+
     public int getPort() {
         if(socketAddress == null){
             return 0;
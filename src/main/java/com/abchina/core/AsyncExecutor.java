@@ -0,0 +1,128 @@
+package com.abchina.core;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 异步servlet（AsyncContext.start、dispatch与超时通知）的执行器，容器内所有servlet上下文共用，随容器关闭
+ * 队列有界，队列满时先交给拒绝策略（记录、告警等），之后总是抛出RejectedExecutionException，由ServletAsyncContext响应503并结束请求；
+ * 丢弃任务或在提交线程上执行的策略（Discard、DiscardOldest、CallerRuns）会让请求永远不结束或阻塞事件循环与计时线程，不能使用
+ * 空闲的线程超时退出，没有异步请求时不占用线程
+ * 统计排队时间与执行时间，可以通过getter或toString()观察积压情况
+ */
+public class AsyncExecutor extends ThreadPoolExecutor {
+
+    private final LongAdder queueWaitNanos = new LongAdder();
+    private final LongAdder runNanos = new LongAdder();
+    private final LongAccumulator maxQueueWaitNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder rejectedCount = new LongAdder();
+
+    /**
+     * @param threads          线程数
+     * @param queueCapacity    排队任务数的上限
+     * @param rejectedHandler  队列满时的拒绝策略，只用于统计、告警，不能执行或丢弃任务
+     */
+    public AsyncExecutor(int threads, int queueCapacity, RejectedExecutionHandler rejectedHandler) {
+        super(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity),
+                new DefaultThreadFactory("servlet-async", true), rejectedHandler);
+        if (rejectedHandler instanceof CallerRunsPolicy || rejectedHandler instanceof DiscardPolicy
+                || rejectedHandler instanceof DiscardOldestPolicy) {
+            throw new IllegalArgumentException("Async tasks can not be discarded or run by the caller: " + rejectedHandler.getClass().getName());
+        }
+        allowCoreThreadTimeOut(true);
+        //统计拒绝次数后再交给配置的拒绝策略，策略没有抛出异常时也要让提交方知道任务没有执行
+        setRejectedExecutionHandler((task, executor) -> {
+            rejectedCount.increment();
+            rejectedHandler.rejectedExecution(task, executor);
+            throw new RejectedExecutionException("Async task rejected from " + executor);
+        });
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        super.execute(new TimedTask(command));
+    }
+
+    /**
+     * @return 正在排队的任务数
+     */
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    /**
+     * @return 被拒绝的任务数
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * @return 已完成任务的平均排队时间（毫秒）
+     */
+    public double getAverageQueueWaitMillis() {
+        long completed = getCompletedTaskCount();
+        return completed == 0 ? 0 : queueWaitNanos.sum() / 1e6 / completed;
+    }
+
+    /**
+     * @return 已完成任务的平均执行时间（毫秒）
+     */
+    public double getAverageRunMillis() {
+        long completed = getCompletedTaskCount();
+        return completed == 0 ? 0 : runNanos.sum() / 1e6 / completed;
+    }
+
+    /**
+     * @return 最长的排队时间（毫秒）
+     */
+    public long getMaxQueueWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxQueueWaitNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncExecutor{" +
+                "poolSize=" + getPoolSize() +
+                ", activeCount=" + getActiveCount() +
+                ", queueDepth=" + getQueueDepth() +
+                ", completed=" + getCompletedTaskCount() +
+                ", rejected=" + getRejectedCount() +
+                ", avgQueueWaitMillis=" + String.format("%.3f", getAverageQueueWaitMillis()) +
+                ", maxQueueWaitMillis=" + getMaxQueueWaitMillis() +
+                ", avgRunMillis=" + String.format("%.3f", getAverageRunMillis()) +
+                '}';
+    }
+
+    /**
+     * 记录提交时间，执行时累计排队时间与执行时间
+     */
+    private final class TimedTask implements Runnable {
+        private final Runnable task;
+        private final long submitNanos = System.nanoTime();
+
+        TimedTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long startNanos = System.nanoTime();
+            long wait = startNanos - submitNanos;
+            queueWaitNanos.add(wait);
+            maxQueueWaitNanos.accumulate(wait);
+            try {
+                task.run();
+            } finally {
+                runNanos.add(System.nanoTime() - startNanos);
+            }
+        }
+    }
+}
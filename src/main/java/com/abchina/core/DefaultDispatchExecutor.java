@@ -0,0 +1,31 @@
+package com.abchina.core;
+
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
+
+import java.util.concurrent.Executor;
+
+/**
+ * 固定数量的平台线程，每个连接绑定其中一个线程
+ */
+public class DefaultDispatchExecutor implements DispatchExecutor {
+
+    private final EventExecutorGroup executorGroup;
+
+    /**
+     * @param threads 业务线程数
+     */
+    public DefaultDispatchExecutor(int threads) {
+        this.executorGroup = new DefaultEventExecutorGroup(threads);
+    }
+
+    @Override
+    public Executor newChannelExecutor() {
+        return executorGroup.next();
+    }
+
+    @Override
+    public void shutdownGracefully() {
+        executorGroup.shutdownGracefully();
+    }
+}
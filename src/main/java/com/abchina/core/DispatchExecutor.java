@@ -0,0 +1,28 @@
+package com.abchina.core;
+
+import java.util.concurrent.Executor;
+
+/**
+ * 执行servlet的业务执行器
+ * 每个HTTP/1.1连接分配一个Executor：同一连接上提交的任务按提交顺序依次执行，管线化的请求因此按到达顺序处理
+ * HTTP/2的流之间没有顺序要求，每个流单独分配，一个慢的流不会挡住同一连接上的其他流
+ */
+public interface DispatchExecutor {
+
+    /**
+     * @return 分配给一个新连接的执行器
+     */
+    Executor newChannelExecutor();
+
+    /**
+     * @return 分配给一个HTTP/2流的执行器，默认与连接的分配方式相同
+     */
+    default Executor newStreamExecutor() {
+        return newChannelExecutor();
+    }
+
+    /**
+     * 关闭执行器，已提交的任务执行完后退出
+     */
+    void shutdownGracefully();
+}
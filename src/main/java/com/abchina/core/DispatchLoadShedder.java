@@ -0,0 +1,176 @@
+package com.abchina.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 业务执行器的过载保护，默认不限制
+ * 请求提交到业务执行器之前调用admit()，排队的请求超过maxQueueDepth时直接拒绝；
+ * 业务线程开始执行时调用onDequeue()，排队时间超过maxQueueWaitMillis的请求不再执行（客户端多半已经超时）
+ *
+ * 自适应模式（CoDel）：一个interval内排队时间始终高于target时进入过载状态，
+ * 过载状态下排队时间超过target的请求不再执行，队列中已有请求时新请求直接拒绝，直到出现低于target的排队时间
+ * 被拒绝的请求由调用方在事件循环上响应503，排队的请求保持较短的等待时间，而不是无限增长
+ */
+public class DispatchLoadShedder {
+
+    private int maxQueueDepth;
+    private long maxQueueWaitNanos;
+    private boolean adaptive;
+    private long targetNanos = TimeUnit.MILLISECONDS.toNanos(5);
+    private long intervalNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    private int retryAfterSeconds = 1;
+
+    //已提交还没有开始执行的请求数
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    //CoDel状态，多个业务线程更新，偶尔的竞争只影响进入、退出过载状态的时机
+    private volatile long firstAboveTime;
+    private volatile boolean dropping;
+
+    /**
+     * 请求提交到业务执行器之前调用，返回true时必须在开始执行时调用onDequeue()，提交失败时调用onRejected()
+     * @return 是否接受该请求
+     */
+    public boolean admit() {
+        //多个事件循环同时提交，检查与加一要在同一次CAS中完成，否则可能一起越过上限
+        for (;;) {
+            int depth = queueDepth.get();
+            if (maxQueueDepth > 0 && depth >= maxQueueDepth) {
+                return false;
+            }
+            if (adaptive && dropping && depth > 0) {
+                return false;
+            }
+            if (queueDepth.compareAndSet(depth, depth + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 已接受的请求没能提交到业务执行器
+     */
+    public void onRejected() {
+        queueDepth.decrementAndGet();
+    }
+
+    /**
+     * 业务线程开始执行请求时调用
+     * @param enqueueNanos 提交时的System.nanoTime()
+     * @return 请求是否排队太久，应当直接拒绝
+     */
+    public boolean onDequeue(long enqueueNanos) {
+        queueDepth.decrementAndGet();
+        long now = System.nanoTime();
+        long sojourn = now - enqueueNanos;
+        if (maxQueueWaitNanos > 0 && sojourn > maxQueueWaitNanos) {
+            return true;
+        }
+        if (!adaptive) {
+            return false;
+        }
+        if (sojourn < targetNanos) {
+            firstAboveTime = 0;
+            dropping = false;
+            return false;
+        }
+        long first = firstAboveTime;
+        if (first == 0) {
+            firstAboveTime = now + intervalNanos;
+        } else if (now - first >= 0) {
+            dropping = true;
+        }
+        return dropping;
+    }
+
+    /**
+     * @return 当前排队的请求数
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * @return 是否处于自适应模式的过载状态
+     */
+    public boolean isDropping() {
+        return dropping;
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * @param maxQueueDepth 排队请求数的上限，0表示不限制
+     */
+    public void setMaxQueueDepth(int maxQueueDepth) {
+        this.maxQueueDepth = maxQueueDepth;
+    }
+
+    public long getMaxQueueWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxQueueWaitNanos);
+    }
+
+    /**
+     * @param maxQueueWaitMillis 排队时间的上限（毫秒），超过的请求不再执行，0表示不限制
+     */
+    public void setMaxQueueWaitMillis(long maxQueueWaitMillis) {
+        this.maxQueueWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueWaitMillis);
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * @param adaptive 是否开启CoDel自适应模式
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    public long getTargetMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(targetNanos);
+    }
+
+    /**
+     * @param targetMillis 自适应模式下可以接受的排队时间（毫秒），默认5
+     */
+    public void setTargetMillis(long targetMillis) {
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+    }
+
+    public long getIntervalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(intervalNanos);
+    }
+
+    /**
+     * @param intervalMillis 自适应模式下排队时间持续高于target多久进入过载状态（毫秒），默认100
+     */
+    public void setIntervalMillis(long intervalMillis) {
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * @param retryAfterSeconds 503响应的Retry-After（秒），默认1
+     */
+    public void setRetryAfterSeconds(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    @Override
+    public String toString() {
+        return "DispatchLoadShedder{" +
+                "maxQueueDepth=" + maxQueueDepth +
+                ", maxQueueWaitMillis=" + getMaxQueueWaitMillis() +
+                ", adaptive=" + adaptive +
+                ", queueDepth=" + queueDepth.get() +
+                ", dropping=" + dropping +
+                '}';
+    }
+}
@@ -0,0 +1,238 @@
+package com.abchina.core;
+
+import com.abchina.util.HostUtil;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 服务端的线程数与socket参数
+ * 默认值按实际可用的CPU数（考虑容器的CPU配额与cpuset，见HostUtil.getEffectiveProcessors()）计算：
+ * worker事件循环每个CPU一个，业务线程每个CPU八个（不少于16个），异步servlet的线程每个CPU两个（不少于8个）
+ * 大小为0的缓冲区、水位线表示使用操作系统或netty的默认值
+ */
+public class NettyServerTuning {
+
+    //netty的默认水位线
+    private static final int DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK = 64 * 1024;
+    private static final int DEFAULT_WRITE_BUFFER_LOW_WATER_MARK = 32 * 1024;
+
+    private int workerThreads;
+    private int bizThreads;
+    private int asyncThreads;
+    private int asyncQueueCapacity = 10000;
+    private int soBacklog = 128;
+    private int soRcvbuf;
+    private int soSndbuf;
+    private int writeBufferHighWaterMark;
+    private int writeBufferLowWaterMark;
+    private boolean tcpNodelay = true;
+    private boolean soKeepalive = true;
+    //其他server channel与连接的参数，如EpollChannelOption.TCP_CORK、TCP_KEEPIDLE
+    private final Map<ChannelOption<?>, Object> options = new LinkedHashMap<>();
+    private final Map<ChannelOption<?>, Object> childOptions = new LinkedHashMap<>();
+
+    public NettyServerTuning() {
+        int processors = HostUtil.getEffectiveProcessors();
+        this.workerThreads = processors;
+        this.bizThreads = Math.max(16, processors * 8);
+        this.asyncThreads = Math.max(8, processors * 2);
+    }
+
+    /**
+     * 把socket参数设置到bootstrap上
+     * @param bootstrap 服务端bootstrap
+     */
+    @SuppressWarnings("unchecked")
+    public void configure(ServerBootstrap bootstrap) {
+        bootstrap.option(ChannelOption.SO_REUSEADDR, true)
+                .option(ChannelOption.SO_BACKLOG, soBacklog) // determining the number of connections queued
+                .childOption(ChannelOption.TCP_NODELAY, tcpNodelay)
+                .childOption(ChannelOption.SO_KEEPALIVE, soKeepalive);
+        if (soRcvbuf > 0) {
+            //在监听socket上设置，accept的连接才能按它协商TCP窗口扩大
+            bootstrap.option(ChannelOption.SO_RCVBUF, soRcvbuf);
+            bootstrap.childOption(ChannelOption.SO_RCVBUF, soRcvbuf);
+        }
+        if (soSndbuf > 0) {
+            bootstrap.childOption(ChannelOption.SO_SNDBUF, soSndbuf);
+        }
+        configureWaterMarks(bootstrap);
+        for (Map.Entry<ChannelOption<?>, Object> entry : options.entrySet()) {
+            bootstrap.option((ChannelOption<Object>) entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<ChannelOption<?>, Object> entry : childOptions.entrySet()) {
+            bootstrap.childOption((ChannelOption<Object>) entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * 校验相互依赖的参数，启动前调用，不合法时抛出IllegalArgumentException
+     */
+    public void validate() {
+        int high = getEffectiveHighWaterMark();
+        int low = writeBufferLowWaterMark > 0 ? writeBufferLowWaterMark : DEFAULT_WRITE_BUFFER_LOW_WATER_MARK;
+        if (low > high) {
+            throw new IllegalArgumentException("writeBufferLowWaterMark (" + low + ") must not be greater than writeBufferHighWaterMark (" + high + ")");
+        }
+    }
+
+    private int getEffectiveHighWaterMark() {
+        return writeBufferHighWaterMark > 0 ? writeBufferHighWaterMark : DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK;
+    }
+
+    /**
+     * 每次设置水位线时netty都要求低水位线不高于高水位线，不满足时只记录日志、不生效，所以先校验两者，再按顺序设置：
+     * 高水位线降到默认低水位线以下时先设置低水位线，否则先设置高水位线
+     */
+    private void configureWaterMarks(ServerBootstrap bootstrap) {
+        validate();
+        boolean lowFirst = getEffectiveHighWaterMark() < DEFAULT_WRITE_BUFFER_LOW_WATER_MARK;
+        if (lowFirst && writeBufferLowWaterMark > 0) {
+            bootstrap.childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, writeBufferLowWaterMark);
+        }
+        if (writeBufferHighWaterMark > 0) {
+            bootstrap.childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, writeBufferHighWaterMark);
+        }
+        if (!lowFirst && writeBufferLowWaterMark > 0) {
+            bootstrap.childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, writeBufferLowWaterMark);
+        }
+    }
+
+    /**
+     * @return worker事件循环线程数
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    /**
+     * @return 执行servlet的业务线程数
+     */
+    public int getBizThreads() {
+        return bizThreads;
+    }
+
+    public void setBizThreads(int bizThreads) {
+        this.bizThreads = bizThreads;
+    }
+
+    /**
+     * @return 执行异步servlet的线程数，所有servlet上下文共用
+     */
+    public int getAsyncThreads() {
+        return asyncThreads;
+    }
+
+    public void setAsyncThreads(int asyncThreads) {
+        this.asyncThreads = asyncThreads;
+    }
+
+    public int getAsyncQueueCapacity() {
+        return asyncQueueCapacity;
+    }
+
+    /**
+     * @param asyncQueueCapacity 异步servlet排队任务数的上限，超过时交给拒绝策略
+     */
+    public void setAsyncQueueCapacity(int asyncQueueCapacity) {
+        this.asyncQueueCapacity = asyncQueueCapacity;
+    }
+
+    public int getSoBacklog() {
+        return soBacklog;
+    }
+
+    public void setSoBacklog(int soBacklog) {
+        this.soBacklog = soBacklog;
+    }
+
+    public int getSoRcvbuf() {
+        return soRcvbuf;
+    }
+
+    public void setSoRcvbuf(int soRcvbuf) {
+        this.soRcvbuf = soRcvbuf;
+    }
+
+    public int getSoSndbuf() {
+        return soSndbuf;
+    }
+
+    public void setSoSndbuf(int soSndbuf) {
+        this.soSndbuf = soSndbuf;
+    }
+
+    public int getWriteBufferHighWaterMark() {
+        return writeBufferHighWaterMark;
+    }
+
+    /**
+     * @param writeBufferHighWaterMark 连接的写缓冲超过该值时不可写，输出流随之挂起（字节）
+     */
+    public void setWriteBufferHighWaterMark(int writeBufferHighWaterMark) {
+        this.writeBufferHighWaterMark = writeBufferHighWaterMark;
+    }
+
+    public int getWriteBufferLowWaterMark() {
+        return writeBufferLowWaterMark;
+    }
+
+    /**
+     * @param writeBufferLowWaterMark 写缓冲回落到该值以下时恢复可写（字节）
+     */
+    public void setWriteBufferLowWaterMark(int writeBufferLowWaterMark) {
+        this.writeBufferLowWaterMark = writeBufferLowWaterMark;
+    }
+
+    public boolean isTcpNodelay() {
+        return tcpNodelay;
+    }
+
+    public void setTcpNodelay(boolean tcpNodelay) {
+        this.tcpNodelay = tcpNodelay;
+    }
+
+    public boolean isSoKeepalive() {
+        return soKeepalive;
+    }
+
+    public void setSoKeepalive(boolean soKeepalive) {
+        this.soKeepalive = soKeepalive;
+    }
+
+    /**
+     * 设置其他server channel参数
+     */
+    public <T> NettyServerTuning option(ChannelOption<T> option, T value) {
+        options.put(option, value);
+        return this;
+    }
+
+    /**
+     * 设置其他连接参数，如epoll传输的EpollChannelOption.TCP_KEEPIDLE
+     */
+    public <T> NettyServerTuning childOption(ChannelOption<T> option, T value) {
+        childOptions.put(option, value);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "NettyServerTuning{" +
+                "processors=" + HostUtil.getEffectiveProcessors() +
+                ", cpuQuota=" + HostUtil.getCpuQuota() +
+                ", numaNodes=" + HostUtil.getNumaNodeCount() +
+                ", workerThreads=" + workerThreads +
+                ", bizThreads=" + bizThreads +
+                ", asyncThreads=" + asyncThreads +
+                ", soBacklog=" + soBacklog +
+                '}';
+    }
+}
@@ -0,0 +1,97 @@
+package com.abchina.core;
+
+import java.lang.reflect.Method;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 每个请求在JDK虚拟线程上执行（JDK21及以上，以-Pjdk21编译）
+ * servlet阻塞在下游调用上时只挂起虚拟线程，不占用平台线程，不需要按并发数配置大线程池
+ *
+ * 每个连接一个任务队列，有任务时启动一个虚拟线程依次执行，队列空了线程即结束，同一连接上的请求保持顺序
+ * 虚拟线程不会被复用，按线程缓存的对象池在这里没有效果，请求与响应对象在事件循环上取出和归还（见ServletHttpServletRequest.recycle）
+ * 编译目标仍为1.8，虚拟线程的API通过反射获取，运行的JDK不支持时isAvailable()返回false
+ */
+public class VirtualThreadDispatchExecutor implements DispatchExecutor {
+
+    private static final ThreadFactory VIRTUAL_THREAD_FACTORY = newVirtualThreadFactory("dispatcher-virtual-");
+
+    private volatile boolean shutdown;
+
+    public VirtualThreadDispatchExecutor() {
+        if (VIRTUAL_THREAD_FACTORY == null) {
+            throw new IllegalStateException("Virtual threads are not supported by JDK " + System.getProperty("java.version"));
+        }
+    }
+
+    /**
+     * @return 当前JDK是否支持虚拟线程
+     */
+    public static boolean isAvailable() {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+
+    /**
+     * Thread.ofVirtual().name(prefix, 0).factory()
+     */
+    private static ThreadFactory newVirtualThreadFactory(String prefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    @Override
+    public Executor newChannelExecutor() {
+        return new SerialExecutor();
+    }
+
+    @Override
+    public void shutdownGracefully() {
+        shutdown = true;
+    }
+
+    /**
+     * 一个连接的任务队列，同一时刻最多一个虚拟线程在执行
+     */
+    private class SerialExecutor implements Executor, Runnable {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean running = new AtomicBoolean();
+
+        @Override
+        public void execute(Runnable task) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Dispatch executor has been shut down");
+            }
+            tasks.add(task);
+            if (running.compareAndSet(false, true)) {
+                VIRTUAL_THREAD_FACTORY.newThread(this).start();
+            }
+        }
+
+        @Override
+        public void run() {
+            do {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), t);
+                    }
+                }
+                running.set(false);
+                //置为空闲之后可能又有任务进入，但提交方看到的是running=true而没有启动线程
+            } while (!tasks.isEmpty() && running.compareAndSet(false, true));
+        }
+    }
+}
@@ -15,7 +15,9 @@ public class HttpConstants {
 
     public static final String SP = ",";
     public static final String GET = "GET";
+    public static final String POST = "POST";
     public static final String HTTPS = "HTTPS";
+    public static final String HTTP_2_0 = "HTTP/2.0";
     public static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
 
     public static final String ROOT_PATH = System.getProperty("user.dir");
@@ -0,0 +1,58 @@
+package com.abchina.servlet;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ *
+ * 预先编码好的完整HTTP/1.1响应（状态行、响应头，没有响应体），用于反复写出的固定响应（如过载时的503）
+ * 编码结果只生成一次，所有连接共用，每次写出不可释放内容的duplicate，不再经过HttpResponseEncoder；
+ * 可以包装在HttpPipelinedMessage中按请求顺序写出，由NettyEncodedResponseHandler在HttpCodec之前转换为ByteBuf
+ */
+public final class EncodedHttpResponse {
+
+    private final ByteBuf content;
+
+    private EncodedHttpResponse(ByteBuf content) {
+        this.content = content;
+    }
+
+    /**
+     * @param version 协议版本
+     * @param status 状态
+     * @param headers 响应头，需要包括Content-Length: 0
+     * @return 编码好的响应
+     */
+    public static EncodedHttpResponse encode(HttpVersion version, HttpResponseStatus status, HttpHeaders headers) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(version).append(' ').append(status).append("\r\n");
+        for (Map.Entry<CharSequence, CharSequence> header : headers) {
+            builder.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        builder.append("\r\n");
+        byte[] bytes = builder.toString().getBytes(StandardCharsets.US_ASCII);
+        //包装的直接内存不归分配器管理，随对象由GC回收
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return new EncodedHttpResponse(Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(buffer)));
+    }
+
+    /**
+     * @return 编码好的内容，独立读写索引的duplicate，写出后不需要释放
+     */
+    public ByteBuf content() {
+        return content.duplicate();
+    }
+
+    @Override
+    public String toString() {
+        return "EncodedHttpResponse(" + content.toString(StandardCharsets.US_ASCII).trim() + ')';
+    }
+}
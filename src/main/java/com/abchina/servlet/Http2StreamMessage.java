@@ -0,0 +1,76 @@
+package com.abchina.servlet;
+
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.ReferenceCounted;
+
+/**
+ *
+ * HTTP/2连接上写出的响应消息（HttpResponse、HttpContent），带上所属的流ID
+ * 同一连接上多个流的响应交错写出，由HTTP/2连接处理器按流ID转换为HEADERS/DATA帧
+ * 引用计数委托给被包装的消息，写失败时由pipeline释放
+ */
+public final class Http2StreamMessage implements ReferenceCounted {
+
+    private final int streamId;
+    private final Object message;
+
+    public Http2StreamMessage(int streamId, Object message) {
+        this.streamId = streamId;
+        this.message = message;
+    }
+
+    public int streamId() {
+        return streamId;
+    }
+
+    /**
+     * @return 被包装的HttpResponse或HttpContent
+     */
+    public Object message() {
+        return message;
+    }
+
+    @Override
+    public int refCnt() {
+        return message instanceof ReferenceCounted ? ((ReferenceCounted) message).refCnt() : 1;
+    }
+
+    @Override
+    public Http2StreamMessage retain() {
+        ReferenceCountUtil.retain(message);
+        return this;
+    }
+
+    @Override
+    public Http2StreamMessage retain(int increment) {
+        ReferenceCountUtil.retain(message, increment);
+        return this;
+    }
+
+    @Override
+    public Http2StreamMessage touch() {
+        ReferenceCountUtil.touch(message);
+        return this;
+    }
+
+    @Override
+    public Http2StreamMessage touch(Object hint) {
+        ReferenceCountUtil.touch(message, hint);
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return ReferenceCountUtil.release(message);
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        return ReferenceCountUtil.release(message, decrement);
+    }
+
+    @Override
+    public String toString() {
+        return "Http2StreamMessage(streamId=" + streamId + ", " + message + ')';
+    }
+}
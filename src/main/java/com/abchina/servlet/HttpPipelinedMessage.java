@@ -0,0 +1,79 @@
+package com.abchina.servlet;
+
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.ReferenceCounted;
+
+/**
+ *
+ * HTTP/1.1连接上写出的响应消息（HttpResponse、HttpContent、FileRegion、EncodedHttpResponse），带上所属请求的序号
+ * 管线化的请求可能不按顺序处理完，由NettyPipeliningHandler按序号排队，按请求到达的顺序写出
+ * 引用计数委托给被包装的消息，写失败时由pipeline释放
+ */
+public final class HttpPipelinedMessage implements ReferenceCounted {
+
+    private final int sequence;
+    private final Object message;
+
+    public HttpPipelinedMessage(int sequence, Object message) {
+        this.sequence = sequence;
+        this.message = message;
+    }
+
+    /**
+     * @return 所属请求在连接上的序号，从1开始
+     */
+    public int sequence() {
+        return sequence;
+    }
+
+    /**
+     * @return 被包装的HttpResponse、HttpContent、FileRegion或EncodedHttpResponse
+     */
+    public Object message() {
+        return message;
+    }
+
+    @Override
+    public int refCnt() {
+        return message instanceof ReferenceCounted ? ((ReferenceCounted) message).refCnt() : 1;
+    }
+
+    @Override
+    public HttpPipelinedMessage retain() {
+        ReferenceCountUtil.retain(message);
+        return this;
+    }
+
+    @Override
+    public HttpPipelinedMessage retain(int increment) {
+        ReferenceCountUtil.retain(message, increment);
+        return this;
+    }
+
+    @Override
+    public HttpPipelinedMessage touch() {
+        ReferenceCountUtil.touch(message);
+        return this;
+    }
+
+    @Override
+    public HttpPipelinedMessage touch(Object hint) {
+        ReferenceCountUtil.touch(message, hint);
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return ReferenceCountUtil.release(message);
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        return ReferenceCountUtil.release(message, decrement);
+    }
+
+    @Override
+    public String toString() {
+        return "HttpPipelinedMessage(sequence=" + sequence + ", " + message + ')';
+    }
+}
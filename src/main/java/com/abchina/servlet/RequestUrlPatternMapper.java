@@ -1,24 +1,30 @@
 package com.abchina.servlet;
 
-import com.abchina.util.StaticResourcesUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
-import java.io.IOException;
 import java.util.*;
-import java.util.regex.Pattern;
 
 /**
  * 保存，计算URL-pattern与请求路径的匹配关系
  *
+ * 映射关系变化时只记录定义，第一次匹配时编译为字符前缀树（之后再变化则重新编译），
+ * 匹配时在请求URI上按字符走一遍前缀树，不截取子串，与映射的数量无关
  */
 public class RequestUrlPatternMapper {
     private final Logger log = LoggerFactory.getLogger(getClass());
 
-    private UrlPatternContext urlPatternContext;
-    private String contextPath;
+    /**
+     * 静态资源servlet的映射名，没有匹配到其他servlet时使用
+     */
+    private static final String STATIC_RESOURCE_PATTERN = "static-resource";
+
+    private final UrlPatternContext urlPatternContext;
+    private final String contextPath;
+    //编译好的前缀树，映射关系变化后置为null，下次匹配时重新编译
+    private volatile CompiledPatterns compiledPatterns;
 
     public RequestUrlPatternMapper(String contextPath) {
         this.urlPatternContext = new UrlPatternContext();
@@ -34,49 +40,39 @@ public class RequestUrlPatternMapper {
      * @param servletName servletName
      * @throws ServletException servlet异常
      */
-    public void addServlet(String urlPattern, Servlet servlet, String servletName) throws ServletException {
+    public synchronized void addServlet(String urlPattern, Servlet servlet, String servletName) throws ServletException {
         if (urlPattern.endsWith("/*")) {
-            // 路径匹配
-            String pattern = urlPattern.substring(0, urlPattern.length() - 1);
-            for (MappedServlet ms : urlPatternContext.wildcardServlets) {
-                if (ms.pattern.equals(pattern)) {
-                    throw new ServletException("URL Pattern('" + urlPattern + "') already exists!");
-                }
+            // 路径匹配，去掉结尾的/*，/*对应空串
+            String pattern = urlPattern.substring(0, urlPattern.length() - 2);
+            if (urlPatternContext.wildcardServlets.containsKey(pattern)) {
+                throw new ServletException("URL Pattern('" + urlPattern + "') already exists!");
             }
-            MappedServlet newServlet = new MappedServlet(pattern, servlet, servletName);
-            urlPatternContext.wildcardServlets.add(newServlet);
-            urlPatternContext.wildcardServlets.sort((o1, o2) -> o2.pattern.compareTo(o1.pattern));
-            log.debug("Curretn Wildcard URL Pattern List = " + Arrays.toString(urlPatternContext.wildcardServlets.toArray()));
+            urlPatternContext.wildcardServlets.put(pattern, new MappedServlet(pattern, servlet, servletName, true));
+            log.debug("Curretn Wildcard URL Pattern List = " + Arrays.toString(urlPatternContext.wildcardServlets.keySet().toArray()));
         } else if (urlPattern.startsWith("*.")) {
             // 扩展名匹配
             String pattern = urlPattern.substring(2);
-            if (urlPatternContext.extensionServlets.get(pattern) != null) {
+            if (urlPatternContext.extensionServlets.containsKey(pattern)) {
                 throw new ServletException("URL Pattern('" + urlPattern + "') already exists!");
             }
-            MappedServlet newServlet = new MappedServlet(pattern, servlet, servletName);
-            urlPatternContext.extensionServlets.put(pattern, newServlet);
+            urlPatternContext.extensionServlets.put(pattern, new MappedServlet(pattern, servlet, servletName, false));
             log.debug("Curretn Extension URL Pattern List = " + Arrays.toString(urlPatternContext.extensionServlets.keySet().toArray()));
         } else if (urlPattern.equals("/")) {
             // Default资源匹配
             if (urlPatternContext.defaultServlet != null) {
                 throw new ServletException("URL Pattern('" + urlPattern + "') already exists!");
             }
-            urlPatternContext.defaultServlet = new MappedServlet("", servlet, servletName);
+            urlPatternContext.defaultServlet = new MappedServlet("", servlet, servletName, false);
         } else {
             // 精确匹配
-            String pattern;
-            if (urlPattern.length() == 0) {
-                pattern = "/";
-            } else {
-                pattern = urlPattern;
-            }
-            if (urlPatternContext.exactServlets.get(pattern) != null) {
+            String pattern = exactPattern(urlPattern);
+            if (urlPatternContext.exactServlets.containsKey(pattern)) {
                 throw new ServletException("URL Pattern('" + urlPattern + "') already exists!");
             }
-            MappedServlet newServlet = new MappedServlet(pattern, servlet, servletName);
-            urlPatternContext.exactServlets.put(pattern, newServlet);
+            urlPatternContext.exactServlets.put(pattern, new MappedServlet(pattern, servlet, servletName, false));
             log.debug("Curretn Exact URL Pattern List = " + Arrays.toString(urlPatternContext.exactServlets.keySet().toArray()));
         }
+        compiledPatterns = null;
     }
 
     /**
@@ -84,168 +80,275 @@ public class RequestUrlPatternMapper {
      *
      * @param urlPattern url匹配规则
      */
-    public void removeServlet(String urlPattern) {
+    public synchronized void removeServlet(String urlPattern) {
         if (urlPattern.endsWith("/*")) {
             //路径匹配
-            String pattern = urlPattern.substring(0, urlPattern.length() - 2);
-            urlPatternContext.wildcardServlets.removeIf(mappedServlet -> mappedServlet.pattern.equals(pattern));
+            urlPatternContext.wildcardServlets.remove(urlPattern.substring(0, urlPattern.length() - 2));
         } else if (urlPattern.startsWith("*.")) {
             // 扩展名匹配
-            String pattern = urlPattern.substring(2);
-            urlPatternContext.extensionServlets.remove(pattern);
+            urlPatternContext.extensionServlets.remove(urlPattern.substring(2));
         } else if (urlPattern.equals("/")) {
             // Default资源匹配
             urlPatternContext.defaultServlet = null;
         } else {
             // 精确匹配
-            String pattern;
-            if (urlPattern.length() == 0) {
-                pattern = "/";
-            } else {
-                pattern = urlPattern;
-            }
-            urlPatternContext.exactServlets.remove(pattern);
+            urlPatternContext.exactServlets.remove(exactPattern(urlPattern));
         }
+        compiledPatterns = null;
     }
 
     public String getServletNameByRequestURI(String absoluteUri) {
+        MappedServlet mappedServlet = matchRequestPath(absoluteUri, null);
+        return mappedServlet == null ? null : mappedServlet.servletName;
+    }
+
+    /**
+     * @param absoluteUri 请求URI，可以带查询字符串
+     * @return 匹配结果，包括按url-pattern拆分的ServletPath与PathInfo，没有匹配的servlet时返回null
+     */
+    public MappingData getMappingData(String absoluteUri) {
         MappingData mappingData = new MappingData();
-        try {
-            matchRequestPath(absoluteUri, mappingData);
-        } catch (IOException e) {
-            log.error("Throwing exception when getting Servlet Name by request URI, maybe cause by lacking of buffer size.", e);
+        MappedServlet mappedServlet = matchRequestPath(absoluteUri, mappingData);
+        return mappedServlet == null ? null : mappingData;
+    }
+
+    private static String exactPattern(String urlPattern) {
+        return urlPattern.length() == 0 ? "/" : urlPattern;
+    }
+
+    private CompiledPatterns getCompiledPatterns() {
+        CompiledPatterns compiled = compiledPatterns;
+        if (compiled == null) {
+            synchronized (this) {
+                compiled = compiledPatterns;
+                if (compiled == null) {
+                    compiled = new CompiledPatterns(urlPatternContext);
+                    compiledPatterns = compiled;
+                }
+            }
         }
-        return mappingData.servletName;
+        return compiled;
     }
 
     /**
      * Wrapper mapping.
      *
-     * @throws IOException buffer大小不足
+     * @param mappingData 不为null时填入匹配结果
      */
-    private void matchRequestPath(String absolutePath, MappingData mappingData) throws IOException {
+    private MappedServlet matchRequestPath(String absolutePath, MappingData mappingData) {
         // 处理ContextPath，获取访问的相对URI
-        boolean noServletPath = absolutePath.equals(contextPath) || absolutePath.equals(contextPath + "/");
         if (!absolutePath.startsWith(contextPath)) {
-            return;
+            return null;
         }
-        String path = noServletPath ? "/" : absolutePath.substring(contextPath.length());
+        CompiledPatterns compiled = getCompiledPatterns();
+        int start = contextPath.length();
         //去掉查询字符串
-        int queryInx = path.indexOf('?');
-        if(queryInx > -1){
-            path = path.substring(0, queryInx);
+        int end = absolutePath.indexOf('?', start);
+        if (end < 0) {
+            end = absolutePath.length();
+        }
+        // 路径为空时，按“/”匹配
+        boolean noServletPath = end == start || (end == start + 1 && absolutePath.charAt(start) == '/');
+        String path = absolutePath;
+        if (noServletPath) {
+            path = "/";
+            start = 0;
+            end = 1;
         }
 
-        // 优先进行精确匹配
-        internalMapExactWrapper(urlPatternContext.exactServlets, path, mappingData);
+        MappedServlet result = match(compiled, path, start, end, noServletPath);
+        if (result != null && mappingData != null) {
+            mappingData.servlet = result.object;
+            mappingData.servletName = result.servletName;
+            if (result.wildcard) {
+                // 路径匹配：ServletPath为url-pattern去掉/*的部分，其余为PathInfo
+                int servletPathEnd = start + result.pattern.length();
+                mappingData.servletPath = result.pattern;
+                mappingData.pathInfo = servletPathEnd < end ? path.substring(servletPathEnd, end) : null;
+            } else {
+                mappingData.servletPath = path.substring(start, end);
+                mappingData.pathInfo = null;
+            }
+        }
+        return result;
+    }
 
-        // 然后进行路径匹配
-        if (mappingData.servlet == null) {
-            internalMapWildcardWrapper(urlPatternContext.wildcardServlets, path, mappingData);
-            //TODO 暂不考虑JSP的处理
+    /**
+     * 匹配顺序：精确匹配，最长的路径匹配，扩展名匹配，Default Servlet（有文件名时交给静态资源servlet）
+     */
+    private static MappedServlet match(CompiledPatterns compiled, String path, int start, int end, boolean noServletPath) {
+        // 精确匹配与路径匹配在同一次遍历中完成
+        MappedServlet result = compiled.matchPath(path, start, end);
+        if (result != null) {
+            return result;
         }
+        //TODO 暂不考虑JSP的处理
 
-        if (mappingData.servlet == null && noServletPath) {
-            // 路径为空时，重定向到“/”
-            mappingData.servlet = urlPatternContext.defaultServlet.object;
-            mappingData.servletName = urlPatternContext.defaultServlet.servletName;
-            return;
+        if (noServletPath) {
+            return compiled.defaultServlet;
         }
 
         // 后缀名匹配
-        if (mappingData.servlet == null) {
-            internalMapExtensionWrapper(urlPatternContext.extensionServlets, path, mappingData);
+        result = compiled.matchExtension(path, start, end);
+        if (result != null) {
+            return result;
         }
 
         //TODO 暂不考虑Welcome资源
 
-        // Default Servlet
-        if (mappingData.servlet == null) {
-            if (urlPatternContext.defaultServlet != null) {
-                mappingData.servlet = urlPatternContext.defaultServlet.object;
-                mappingData.servletName = urlPatternContext.defaultServlet.servletName;
-            }
-            //处理静态资源
-            if (path.charAt(path.length() - 1) != '/') {
-                boolean isStatic = StaticResourcesUtils.verifyPath(path);
-                MappedServlet mappedServlet = urlPatternContext.exactServlets.get("static-resource");
-                mappingData.servlet = mappedServlet.object;
-                mappingData.servletName = mappedServlet.servletName;
-            }
+        // Default Servlet，处理静态资源
+        if (path.charAt(end - 1) != '/' && compiled.staticResourceServlet != null) {
+            return compiled.staticResourceServlet;
         }
+        return compiled.defaultServlet;
     }
 
-
-    /**
-     * 精确匹配
+    /*
+     * 以下是用到的内部类
      */
-    private void internalMapExactWrapper(Map<String, MappedServlet> servlets, String path, MappingData mappingData) {
-        MappedServlet servlet = servlets.get(path);
-        if (servlet != null) {
-            mappingData.servlet = servlet.object;
-            mappingData.servletName = servlet.servletName;
-        }
+
+    private static class UrlPatternContext {
+        MappedServlet defaultServlet = null; //默认Servlet
+        Map<String, MappedServlet> exactServlets = new HashMap<>(); //精确匹配
+        Map<String, MappedServlet> wildcardServlets = new HashMap<>(); //路径匹配，key为去掉/*的前缀
+        Map<String, MappedServlet> extensionServlets = new HashMap<>(); //扩展名匹配
     }
 
     /**
-     * 路径匹配
+     * 某一时刻映射关系的只读快照
+     * pathTree：精确匹配与路径匹配共用一棵树，节点上分别记录精确匹配和以该节点结尾的路径匹配
+     * extensionTree：扩展名（不含点）的前缀树
      */
-    private void internalMapWildcardWrapper(List<MappedServlet> servlets, String path, MappingData mappingData) {
-        if (!path.endsWith("/")) {
-            path = path + "/";
+    private static class CompiledPatterns {
+        final TrieNode pathTree;
+        final TrieNode extensionTree;
+        final MappedServlet defaultServlet;
+        final MappedServlet staticResourceServlet;
+
+        CompiledPatterns(UrlPatternContext context) {
+            TrieNode pathTree = new TrieNode();
+            for (MappedServlet ms : context.exactServlets.values()) {
+                pathTree.insert(ms.pattern).exact = ms;
+            }
+            for (MappedServlet ms : context.wildcardServlets.values()) {
+                pathTree.insert(ms.pattern).wildcard = ms;
+            }
+            TrieNode extensionTree = new TrieNode();
+            for (MappedServlet ms : context.extensionServlets.values()) {
+                extensionTree.insert(ms.pattern).exact = ms;
+            }
+            pathTree.freeze();
+            extensionTree.freeze();
+            this.pathTree = pathTree;
+            this.extensionTree = extensionTree;
+            this.defaultServlet = context.defaultServlet;
+            this.staticResourceServlet = context.exactServlets.get(STATIC_RESOURCE_PATTERN);
         }
-        MappedServlet result = null;
-        for (MappedServlet ms : servlets) {
-            if (path.startsWith(ms.pattern)) {
-                result = ms;
-                break;
+
+        /**
+         * 沿路径逐字符下行，在每个路径段的边界记录最近的路径匹配，走完整个路径时检查精确匹配
+         */
+        MappedServlet matchPath(String path, int start, int end) {
+            TrieNode node = pathTree;
+            MappedServlet wildcard = node.wildcard; // /*
+            for (int i = start; i < end; i++) {
+                node = node.child(path.charAt(i));
+                if (node == null) {
+                    return wildcard;
+                }
+                if (node.wildcard != null && (i + 1 == end || path.charAt(i + 1) == '/')) {
+                    wildcard = node.wildcard;
+                }
             }
+            return node.exact != null ? node.exact : wildcard;
         }
-        if (result != null) {
-            mappingData.servlet = result.object;
-            mappingData.servletName = result.servletName;
+
+        /**
+         * 最后一个路径段中最后一个点之后的部分作为扩展名
+         */
+        MappedServlet matchExtension(String path, int start, int end) {
+            int dotInx = -1;
+            for (int i = end - 1; i >= start; i--) {
+                char c = path.charAt(i);
+                if (c == '.') {
+                    dotInx = i;
+                    break;
+                }
+                if (c == '/') {
+                    return null;
+                }
+            }
+            if (dotInx < 0) {
+                return null;
+            }
+            TrieNode node = extensionTree;
+            for (int i = dotInx + 1; i < end && node != null; i++) {
+                node = node.child(path.charAt(i));
+            }
+            return node == null ? null : node.exact;
         }
     }
 
     /**
-     * 后缀名匹配
+     * 字符前缀树节点，编译时用TreeMap收集子节点，编译完成后转为有序数组，匹配时二分查找
      */
-    private void internalMapExtensionWrapper(Map<String, MappedServlet> servlets, String path, MappingData mappingData) {
-        int dotInx = path.lastIndexOf('.');
-        path = path.substring(dotInx + 1);
-        MappedServlet servlet = servlets.get(path);
-        if (servlet != null) {
-            mappingData.servlet = servlet.object;
-            mappingData.servletName = servlet.servletName;
+    private static class TrieNode {
+        private static final char[] NO_KEYS = new char[0];
+        private static final TrieNode[] NO_CHILDREN = new TrieNode[0];
+
+        private TreeMap<Character, TrieNode> building = new TreeMap<>();
+        private char[] keys = NO_KEYS;
+        private TrieNode[] children = NO_CHILDREN;
+        MappedServlet exact;
+        MappedServlet wildcard;
+
+        TrieNode insert(String pattern) {
+            TrieNode node = this;
+            for (int i = 0; i < pattern.length(); i++) {
+                node = node.building.computeIfAbsent(pattern.charAt(i), c -> new TrieNode());
+            }
+            return node;
         }
-    }
 
-    /*
-     * 以下是用到的内部类
-     */
+        void freeze() {
+            int size = building.size();
+            if (size > 0) {
+                keys = new char[size];
+                children = new TrieNode[size];
+                int i = 0;
+                for (Map.Entry<Character, TrieNode> entry : building.entrySet()) {
+                    keys[i] = entry.getKey();
+                    children[i] = entry.getValue();
+                    children[i].freeze();
+                    i++;
+                }
+            }
+            building = null;
+        }
 
-    private class UrlPatternContext {
-        MappedServlet defaultServlet = null; //默认Servlet
-        Map<String, MappedServlet> exactServlets = new HashMap<>(); //精确匹配
-        List<MappedServlet> wildcardServlets = new LinkedList<>(); //路径匹配
-        Map<String, MappedServlet> extensionServlets = new HashMap<>(); //扩展名匹配
+        TrieNode child(char c) {
+            int inx = Arrays.binarySearch(keys, c);
+            return inx < 0 ? null : children[inx];
+        }
     }
 
-    private class MappedServlet extends MapElement<Servlet> {
+    private static class MappedServlet extends MapElement<Servlet> {
         @Override
         public String toString() {
             return pattern;
         }
 
-        String servletName;
+        final String servletName;
+        final boolean wildcard; //是否为路径匹配
 
-        MappedServlet(String name, Servlet servlet, String servletName) {
+        MappedServlet(String name, Servlet servlet, String servletName, boolean wildcard) {
             super(name, servlet);
             this.servletName = servletName;
+            this.wildcard = wildcard;
         }
     }
 
-    private class MapElement<T> {
+    private static class MapElement<T> {
         final String pattern;
         final T object;
 
@@ -255,17 +358,37 @@ public class RequestUrlPatternMapper {
         }
     }
 
-    public class MappingData {
+    public static class MappingData {
         Servlet servlet = null;
         String servletName;
+        String servletPath;
+        String pathInfo;
         String redirectPath ;
 
+        public Servlet getServlet() {
+            return servlet;
+        }
+
+        public String getServletName() {
+            return servletName;
+        }
+
+        public String getServletPath() {
+            return servletPath;
+        }
+
+        public String getPathInfo() {
+            return pathInfo;
+        }
+
         public void recycle() {
             servlet = null;
             servletName = null;
+            servletPath = null;
+            pathInfo = null;
             redirectPath = null;
         }
 
     }
 
-}
\ No newline at end of file
+}
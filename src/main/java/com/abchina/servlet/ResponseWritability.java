@@ -0,0 +1,20 @@
+package com.abchina.servlet;
+
+import io.netty.util.AttributeKey;
+
+/**
+ * 响应的内容是否会在channel出站缓冲之外排队，channel.isWritable()看不到这部分：
+ * HTTP/1.1管线化时还没轮到的响应在NettyPipeliningHandler中排队，HTTP/2的DATA帧还要等每个流的流控窗口
+ * 由对应的handler放在channel上；排队的响应由输出流自己按还没有写完的字节数做背压
+ */
+public interface ResponseWritability {
+
+    AttributeKey<ResponseWritability> ATTR_KEY = AttributeKey.valueOf(ResponseWritability.class, "responseWritability");
+
+    /**
+     * 可以在任意线程调用
+     * @param id HTTP/1.1为请求序号，HTTP/2为流ID
+     * @return 该响应写出的内容是否可能排在channel出站缓冲之外
+     */
+    boolean isQueued(int id);
+}
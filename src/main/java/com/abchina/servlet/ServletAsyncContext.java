@@ -1,44 +1,66 @@
 package com.abchina.servlet;
 
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
-import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- *
+ * 异步上下文，startAsync之后请求不占用任何线程，直到complete()或dispatch()
+ * complete()、dispatch()可以在任意线程调用，只有第一次调用生效；超时由所有异步上下文共用的时间轮计时
+ * 监听器的onTimeout、onError、onComplete各自最多通知一次
  */
 public class ServletAsyncContext implements AsyncContext {
 
+    //时间轮精度100毫秒，超时本身就是粗粒度的，几万个挂起的请求只占用一个计时线程
+    private static final Timer TIMER = new HashedWheelTimer(new DefaultThreadFactory("async-timeout", true), 100, TimeUnit.MILLISECONDS);
+
     private ServletRequest servletRequest;
     private ServletResponse servletResponse;
+    //容器创建的请求，startAsync传入的可能是包装过的请求
+    private final ServletHttpServletRequest originalRequest;
     private ExecutorService executorService;
 
-    // 0=初始, 1=开始
-    private int status;
-    private static final int STATUS_INIT = 0;
-    private static final int STATUS_START = 1;
-    private static final int STATUS_COMPLETE = 2;
+    private final AtomicInteger status;
+    private static final int STATUS_START = 1;       //startAsync之后，等待complete()或dispatch()
+    private static final int STATUS_DISPATCHING = 2; //dispatch()之后，派发执行期间可以再次startAsync
+    private static final int STATUS_TIMEOUT = 3;     //已超时，正在通知监听器，监听器可以调用complete()或dispatch()
+    private static final int STATUS_COMPLETE = 4;
+
+    //毫秒，小于等于0表示不超时
+    private volatile long timeout;
+    private volatile Timeout timeoutHandle;
 
-    //毫秒
-    private long timeout;
+    //请求与响应的使用者：异步周期本身（complete时释放）与正在执行的容器派发（startAsync所在的派发、异步派发、超时处理），
+    //全部释放后请求与响应归还对象池，complete()可能早于派发返回
+    private final AtomicInteger holders = new AtomicInteger(2);
 
-    private List<ServletAsyncListenerWrapper> asyncListenerWarpperList;
+    private final List<ServletAsyncListenerWrapper> asyncListenerWarpperList = new CopyOnWriteArrayList<>();
+    //本次异步周期是否已经通知过onError，派发异常、complete时的IO异常、执行器拒绝可能先后发生
+    private final AtomicBoolean errorNotified = new AtomicBoolean();
 
     private ServletContext servletContext;
 
-    public ServletAsyncContext(ServletContext servletContext, ExecutorService executorService, ServletRequest servletRequest, ServletResponse servletResponse) {
+    public ServletAsyncContext(ServletContext servletContext, ExecutorService executorService, ServletHttpServletRequest originalRequest,
+                               ServletRequest servletRequest, ServletResponse servletResponse) {
         this.servletContext = servletContext;
+        this.originalRequest = originalRequest;
         this.executorService = executorService;
         this.servletRequest = servletRequest;
         this.servletResponse = servletResponse;
-        this.status = STATUS_INIT;
+        this.status = new AtomicInteger(STATUS_START);
     }
 
     @Override
@@ -76,6 +98,11 @@ public class ServletAsyncContext implements AsyncContext {
 
     @Override
     public void dispatch(javax.servlet.ServletContext context, String path) {
+        if (!status.compareAndSet(STATUS_START, STATUS_DISPATCHING) && !status.compareAndSet(STATUS_TIMEOUT, STATUS_DISPATCHING)) {
+            throw new IllegalStateException("Async dispatch or complete has already been called");
+        }
+        cancelTimeout();
+
         final HttpServletRequest httpRequest = (HttpServletRequest) servletRequest;
         httpRequest.setAttribute(ASYNC_CONTEXT_PATH, httpRequest.getContextPath());
         httpRequest.setAttribute(ASYNC_PATH_INFO, httpRequest.getPathInfo());
@@ -90,90 +117,120 @@ public class ServletAsyncContext implements AsyncContext {
 
         ServletRequestDispatcher dispatcher = servletContext.getRequestDispatcher(path);
 
-        start(()->{
+        holders.incrementAndGet();
+        if (!execute(()->{
             try {
-                dispatcher.dispatch(httpRequest, servletResponse,DispatcherType.ASYNC);
+                if (dispatcher == null) {
+                    ((HttpServletResponse) servletResponse).sendError(HttpServletResponse.SC_NOT_FOUND);
+                } else {
+                    dispatcher.dispatch(httpRequest, servletResponse, DispatcherType.ASYNC);
+                }
             } catch (Throwable throwable) {
-                //通知异常
-                notifyEvent(listenerWrapper -> {
-                    AsyncEvent event = new AsyncEvent(this,listenerWrapper.servletRequest,listenerWrapper.servletResponse,throwable);
-                    try {
-                        listenerWrapper.asyncListener.onError(event);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                });
+                notifyError(throwable);
+            } finally {
+                //派发的servlet没有再次startAsync时结束响应
+                if (status.get() == STATUS_DISPATCHING) {
+                    complete();
+                }
+                endDispatch();
             }
-        });
-
+        })) {
+            endDispatch();
+        }
     }
 
     @Override
     public void complete() {
-        try {
-            status = STATUS_COMPLETE;
-            servletResponse.getOutputStream().close();
-        } catch (IOException e) {
-            // TODO notify listeners
-            e.printStackTrace();
+        int current = status.get();
+        while (current != STATUS_COMPLETE) {
+            if (status.compareAndSet(current, STATUS_COMPLETE)) {
+                cancelTimeout();
+                ServletHttpServletResponse originalResponse = originalRequest.getServletResponse();
+                try {
+                    originalResponse.finish();
+                    //释放未被servlet读取的请求体
+                    originalRequest.getNettyInputStream().close();
+                } catch (IOException e) {
+                    notifyError(e);
+                }
+                //通知结束
+                notifyEvent(listenerWrapper -> listenerWrapper.asyncListener.onComplete(newEvent(listenerWrapper, null)));
+                endDispatch();
+                return;
+            }
+            current = status.get();
         }
     }
 
+    /**
+     * 在异步执行器上执行，立即返回
+     */
     @Override
     public void start(Runnable runnable) {
-        status = STATUS_START;
+        execute(runnable);
+    }
 
-        Future future = executorService.submit(runnable);
+    /**
+     * 一次容器派发执行结束（startAsync所在的派发返回时由容器调用），
+     * 所有派发都已返回并且已经complete时，请求与响应归还对象池，之后不能再使用
+     */
+    public void endDispatch() {
+        if (holders.decrementAndGet() == 0) {
+            ServletHttpServletResponse originalResponse = originalRequest.getServletResponse();
+            if (originalResponse != null) {
+                originalResponse.recycle();
+            }
+            originalRequest.recycle();
+        }
+    }
 
+    /**
+     * 容器内部的任务：被拒绝时任务本身不会执行，用它释放的派发要在这里释放
+     * @return 是否提交成功
+     */
+    private boolean execute(Runnable runnable) {
         try {
-            //通知开始
-            notifyEvent(listenerWrapper -> {
-                AsyncEvent event = new AsyncEvent(this,listenerWrapper.servletRequest,listenerWrapper.servletResponse,null);
+            executorService.execute(runnable);
+            return true;
+        } catch (RejectedExecutionException e) {
+            //异步执行器积压，响应503
+            notifyError(e);
+            if (!servletResponse.isCommitted() && servletResponse instanceof HttpServletResponse) {
                 try {
-                    listenerWrapper.asyncListener.onStartAsync(event);
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    ((HttpServletResponse) servletResponse).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                } catch (IOException | IllegalStateException ignored) {
+                    //已经开始响应，直接结束
                 }
-            });
-
-            future.get(getTimeout(), TimeUnit.MILLISECONDS);
-
-        } catch (TimeoutException e) {
-            //通知超时
-            notifyEvent(listenerWrapper -> {
-                try {
-                    AsyncEvent event = new AsyncEvent(this,listenerWrapper.servletRequest,listenerWrapper.servletResponse,null);
-                    listenerWrapper.asyncListener.onTimeout(event);
-                } catch (IOException ioException) {
-                    ioException.printStackTrace();
-                }
-            });
-        }catch (Throwable throwable){
-            //通知异常
-            notifyEvent(listenerWrapper -> {
-                AsyncEvent event = new AsyncEvent(this,listenerWrapper.servletRequest,listenerWrapper.servletResponse,throwable);
-                try {
-                    listenerWrapper.asyncListener.onError(event);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            });
-        }finally {
+            }
             complete();
-
-            //通知结束
-            notifyEvent(listenerWrapper -> {
-                try {
-                    AsyncEvent event = new AsyncEvent(this,listenerWrapper.servletRequest,listenerWrapper.servletResponse,null);
-                    listenerWrapper.asyncListener.onComplete(event);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            });
+            return false;
         }
     }
 
-
+    /**
+     * 派发执行期间再次startAsync，重新计时，监听器需要重新注册
+     * @return 是否重新开始，已经结束时返回false
+     */
+    boolean restart(ServletRequest servletRequest, ServletResponse servletResponse) {
+        if (!status.compareAndSet(STATUS_DISPATCHING, STATUS_START)) {
+            return false;
+        }
+        this.servletRequest = servletRequest;
+        this.servletResponse = servletResponse;
+        errorNotified.set(false);
+        List<ServletAsyncListenerWrapper> listeners = new CopyOnWriteArrayList<>(asyncListenerWarpperList);
+        asyncListenerWarpperList.clear();
+        //通知开始
+        for (ServletAsyncListenerWrapper listenerWrapper : listeners) {
+            try {
+                listenerWrapper.asyncListener.onStartAsync(newEvent(listenerWrapper, null));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        scheduleTimeout();
+        return true;
+    }
 
     @Override
     public void addListener(AsyncListener listener) {
@@ -182,10 +239,6 @@ public class ServletAsyncContext implements AsyncContext {
 
     @Override
     public void addListener(AsyncListener listener, ServletRequest servletRequest, ServletResponse servletResponse) {
-        if(asyncListenerWarpperList == null){
-            asyncListenerWarpperList = new LinkedList<>();
-        }
-
         asyncListenerWarpperList.add(new ServletAsyncListenerWrapper(listener,servletRequest,servletResponse));
     }
 
@@ -193,17 +246,18 @@ public class ServletAsyncContext implements AsyncContext {
     public <T extends AsyncListener> T createListener(Class<T> clazz) throws ServletException {
         try {
             return clazz.newInstance();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new ServletException(e);
         }
-        return null;
     }
 
+    /**
+     * 重新开始计时
+     */
     @Override
     public void setTimeout(long timeout) {
         this.timeout = timeout;
+        scheduleTimeout();
     }
 
     @Override
@@ -211,23 +265,94 @@ public class ServletAsyncContext implements AsyncContext {
         return timeout;
     }
 
+    private void scheduleTimeout() {
+        cancelTimeout();
+        if (timeout > 0 && status.get() == STATUS_START) {
+            timeoutHandle = TIMER.newTimeout(t -> onTimeout(), timeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void cancelTimeout() {
+        Timeout handle = timeoutHandle;
+        if (handle != null) {
+            handle.cancel();
+            timeoutHandle = null;
+        }
+    }
+
+    /**
+     * 在计时线程上调用，监听器交给异步执行器通知，不能阻塞时间轮
+     */
+    private void onTimeout() {
+        if (!status.compareAndSet(STATUS_START, STATUS_TIMEOUT)) {
+            return;
+        }
+        holders.incrementAndGet();
+        if (!execute(() -> {
+            //通知超时
+            notifyEvent(listenerWrapper -> listenerWrapper.asyncListener.onTimeout(newEvent(listenerWrapper, null)));
+            //监听器没有调用complete()或dispatch()时响应500
+            if (status.get() == STATUS_TIMEOUT) {
+                if (!servletResponse.isCommitted() && servletResponse instanceof HttpServletResponse) {
+                    try {
+                        ((HttpServletResponse) servletResponse).sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    } catch (IOException | IllegalStateException e) {
+                        //已经开始响应，直接结束
+                    }
+                }
+                complete();
+            }
+            endDispatch();
+        })) {
+            endDispatch();
+        }
+    }
 
     ServletContext unWrapper(javax.servlet.ServletContext context){
         return (ServletContext) context;
     }
 
+    /**
+     * @return 是否在等待complete()或dispatch()
+     */
     public boolean isStarted(){
-        return status == STATUS_START;
+        int current = status.get();
+        return current == STATUS_START || current == STATUS_TIMEOUT;
+    }
+
+    /**
+     * @return 是否已经结束响应
+     */
+    public boolean isCompleted(){
+        return status.get() == STATUS_COMPLETE;
     }
 
-    private void notifyEvent(Consumer<ServletAsyncListenerWrapper> consumer){
-        if(asyncListenerWarpperList != null) {
-            for (ServletAsyncListenerWrapper listenerWrapper : asyncListenerWarpperList){
-                consumer.accept(listenerWrapper);
+    private AsyncEvent newEvent(ServletAsyncListenerWrapper listenerWrapper, Throwable throwable) {
+        return new AsyncEvent(this, listenerWrapper.servletRequest, listenerWrapper.servletResponse, throwable);
+    }
+
+    private void notifyError(Throwable throwable) {
+        if (!errorNotified.compareAndSet(false, true)) {
+            return;
+        }
+        //通知异常
+        notifyEvent(listenerWrapper -> listenerWrapper.asyncListener.onError(newEvent(listenerWrapper, throwable)));
+    }
+
+    private void notifyEvent(ListenerCallback callback){
+        for (ServletAsyncListenerWrapper listenerWrapper : asyncListenerWarpperList){
+            try {
+                callback.accept(listenerWrapper);
+            } catch (Throwable e) {
+                e.printStackTrace();
             }
         }
     }
 
+    private interface ListenerCallback {
+        void accept(ServletAsyncListenerWrapper listenerWrapper) throws IOException;
+    }
+
     class ServletAsyncListenerWrapper{
         AsyncListener asyncListener;
         ServletRequest servletRequest;
@@ -237,8 +362,6 @@ public class ServletAsyncContext implements AsyncContext {
             this.asyncListener = asyncListener;
             this.servletRequest = servletRequest;
             this.servletResponse = servletResponse;
-
-            DispatcherType ASYNC = DispatcherType.ASYNC;
         }
     }
 }
@@ -0,0 +1,157 @@
+package com.abchina.servlet;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderUtil;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ *
+ * 响应压缩配置
+ * 压缩处理器、静态资源的预压缩、输出流是否可以零拷贝发送文件，都用这里的同一套判断
+ */
+public class ServletCompressionConfig {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    public static final String BR = "br";
+
+    private boolean enabled;
+    private Set<String> mimeTypes;
+    /**
+     * 单位字节，小于该长度的响应不压缩
+     */
+    private int minResponseSize = 2048;
+
+    public ServletCompressionConfig() {
+        setMimeTypes("text/html", "text/xml", "text/plain", "text/css", "text/javascript",
+                "application/javascript", "application/json", "application/xml");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public Set<String> getMimeTypes() {
+        return mimeTypes;
+    }
+
+    public void setMimeTypes(String... mimeTypes) {
+        Set<String> set = new HashSet<>();
+        for (String mimeType : mimeTypes) {
+            set.add(mimeType.trim().toLowerCase(Locale.ENGLISH));
+        }
+        this.mimeTypes = set;
+    }
+
+    public int getMinResponseSize() {
+        return minResponseSize;
+    }
+
+    public void setMinResponseSize(int minResponseSize) {
+        this.minResponseSize = minResponseSize;
+    }
+
+    /**
+     * 只按内容类型与长度判断，不考虑是否开启
+     * @param contentType Content-Type，可以带charset等参数
+     * @param contentLength 内容长度，未知时为-1
+     * @return true=值得压缩
+     */
+    public boolean isCompressible(CharSequence contentType, long contentLength) {
+        if (contentType == null || (contentLength >= 0 && contentLength < minResponseSize)) {
+            return false;
+        }
+        String mimeType = contentType.toString();
+        int paramInx = mimeType.indexOf(';');
+        if (paramInx > -1) {
+            mimeType = mimeType.substring(0, paramInx);
+        }
+        mimeType = mimeType.trim().toLowerCase(Locale.ENGLISH);
+        if (mimeTypes.contains(mimeType)) {
+            return true;
+        }
+        int slashInx = mimeType.indexOf('/');
+        return slashInx > -1 && mimeTypes.contains(mimeType.substring(0, slashInx) + "/*");
+    }
+
+    /**
+     * 压缩处理器是否会压缩这个响应
+     * @param response 响应（只看响应头）
+     * @param method 请求方法
+     * @param acceptEncoding 请求的Accept-Encoding
+     * @return true=会被压缩
+     */
+    public boolean shouldCompress(HttpResponse response, HttpMethod method, CharSequence acceptEncoding) {
+        return shouldCompress(response, response.headers().get(HttpHeaderNames.CONTENT_TYPE), method, acceptEncoding);
+    }
+
+    /**
+     * 响应未提交时Content-Type还不在响应头中，由调用方传入
+     * @param response 响应（只看状态码与响应头）
+     * @param contentType Content-Type
+     * @param method 请求方法
+     * @param acceptEncoding 请求的Accept-Encoding
+     * @return true=会被压缩
+     */
+    public boolean shouldCompress(HttpResponse response, CharSequence contentType, HttpMethod method, CharSequence acceptEncoding) {
+        if (!enabled || HttpMethod.HEAD.equals(method)) {
+            return false;
+        }
+        int code = response.status().code();
+        if (code < 200 || code == 204 || code == 304) {
+            return false;
+        }
+        HttpHeaders headers = response.headers();
+        if (headers.contains(HttpHeaderNames.CONTENT_ENCODING)) {
+            return false;
+        }
+        if (!acceptsEncoding(acceptEncoding, GZIP) && !acceptsEncoding(acceptEncoding, DEFLATE)) {
+            return false;
+        }
+        return isCompressible(contentType, HttpHeaderUtil.getContentLength(response, -1));
+    }
+
+    /**
+     * 解析Accept-Encoding，q=0表示明确拒绝
+     * @param acceptEncoding 请求的Accept-Encoding，可以为null
+     * @param encoding 编码，如gzip
+     * @return true=客户端接受该编码
+     */
+    public static boolean acceptsEncoding(CharSequence acceptEncoding, String encoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String token : acceptEncoding.toString().split(",")) {
+            String name = token;
+            String q = null;
+            int paramInx = token.indexOf(';');
+            if (paramInx > -1) {
+                name = token.substring(0, paramInx);
+                q = token.substring(paramInx + 1).trim();
+            }
+            name = name.trim();
+            if (!name.equalsIgnoreCase(encoding) && !"*".equals(name)) {
+                continue;
+            }
+            if (q == null || !q.startsWith("q=")) {
+                return true;
+            }
+            try {
+                return Double.parseDouble(q.substring(2)) > 0;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+}
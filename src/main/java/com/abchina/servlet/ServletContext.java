@@ -1,10 +1,19 @@
 package com.abchina.servlet;
 
+import cn.hutool.core.util.StrUtil;
 import com.abchina.util.LogUtil;
 import com.abchina.util.MimeTypeUtil;
 import com.abchina.util.NamespaceUtil;
+import com.abchina.core.AsyncExecutor;
 import com.abchina.core.constants.HttpConstants;
+import com.abchina.util.ServletUtil;
 import com.abchina.util.TypeUtil;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.netty.handler.codec.http.multipart.DefaultHttpDataFactory;
+import io.netty.handler.codec.http.multipart.DiskAttribute;
+import io.netty.handler.codec.http.multipart.DiskFileUpload;
+import io.netty.handler.codec.http.multipart.HttpDataFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,6 +37,12 @@ import java.util.concurrent.*;
  */
 public class ServletContext implements javax.servlet.ServletContext {
 
+    static {
+        //临时文件在请求结束时删除（见ServletHttpServletRequest.recycle），不注册deleteOnExit，否则DeleteOnExitHook随上传次数一直增长
+        DiskFileUpload.deleteOnExitTemporaryFile = false;
+        DiskAttribute.deleteOnExitTemporaryFile = false;
+    }
+
     private Logger logger = LoggerFactory.getLogger(getClass());
 
     private Map<String,ServletHttpSession> httpSessionMap;
@@ -37,13 +52,21 @@ public class ServletContext implements javax.servlet.ServletContext {
     private Map<String, com.abchina.servlet.ServletRegistration> servletRegistrationMap;
     private Map<String,ServletFilterRegistration> filterRegistrationMap;
 
-    private ExecutorService asyncExecutorService;
+    //容器共用的异步执行器（见AsyncExecutor），单独使用上下文时才自己创建
+    private volatile ExecutorService asyncExecutorService;
 
     private List<EventListener> eventListenerList;
     private Set<SessionTrackingMode> sessionTrackingModeSet;
 
     private ServletSessionCookieConfig sessionCookieConfig;
+    private ServletCompressionConfig compressionConfig = new ServletCompressionConfig();
+    //表单与上传文件的解码数据，超过阈值的部分写入临时文件
+    private HttpDataFactory httpDataFactory = new DefaultHttpDataFactory(DefaultHttpDataFactory.MINSIZE);
     private RequestUrlPatternMapper servletUrlPatternMapper;
+    private ServletFilterMapper filterMapper;
+    //请求路径（不含查询字符串）-> 解析好的转发器，映射关系变化时整体替换
+    private volatile Cache<String, ServletRequestDispatcher> dispatcherCache;
+    private int dispatcherCacheSize = 1024;
     private String rootDirStr;
     private Charset defaultCharset;
     private InetSocketAddress serverSocketAddress;
@@ -53,6 +76,7 @@ public class ServletContext implements javax.servlet.ServletContext {
     private volatile boolean initialized; //记录是否初始化完毕
 
     private File file;
+    private volatile StaticResourceManager staticResourceManager;
 
     public ServletContext(InetSocketAddress socketAddress,
                           ClassLoader classLoader,
@@ -76,6 +100,8 @@ public class ServletContext implements javax.servlet.ServletContext {
         this.servletRegistrationMap = new ConcurrentHashMap<>();
         this.filterRegistrationMap = new ConcurrentHashMap<>();
         this.servletUrlPatternMapper = new RequestUrlPatternMapper(contextPath);
+        this.filterMapper = new ServletFilterMapper(this.contextPath);
+        this.dispatcherCache = newDispatcherCache();
 
         //一分钟检查一次过期session
         new SessionInvalidThread(NamespaceUtil.newIdName(this,"SessionInvalidThread"),60 * 1000).start();
@@ -83,6 +109,28 @@ public class ServletContext implements javax.servlet.ServletContext {
 
     public void addServletMapping(String urlPattern, String name, Servlet servlet) throws ServletException {
         servletUrlPatternMapper.addServlet(urlPattern, servlet, name);
+        this.dispatcherCache = newDispatcherCache();
+    }
+
+    /**
+     * 删除servlet的映射，缓存的转发器随之失效
+     * @param urlPattern url匹配规则
+     */
+    public void removeServletMapping(String urlPattern) {
+        servletUrlPatternMapper.removeServlet(urlPattern);
+        this.dispatcherCache = newDispatcherCache();
+    }
+
+    private Cache<String, ServletRequestDispatcher> newDispatcherCache() {
+        return CacheBuilder.newBuilder().maximumSize(dispatcherCacheSize).build();
+    }
+
+    /**
+     * @param dispatcherCacheSize 按请求路径缓存的转发器数量，超过时淘汰最近最少使用的路径
+     */
+    public void setDispatcherCacheSize(int dispatcherCacheSize) {
+        this.dispatcherCacheSize = dispatcherCacheSize;
+        this.dispatcherCache = newDispatcherCache();
     }
 
     public boolean isInitialized() {
@@ -94,10 +142,24 @@ public class ServletContext implements javax.servlet.ServletContext {
     }
 
     public ExecutorService getAsyncExecutorService() {
-        if(asyncExecutorService == null) {
-            asyncExecutorService = Executors.newFixedThreadPool(8);
+        ExecutorService executorService = asyncExecutorService;
+        if(executorService == null) {
+            synchronized (this) {
+                executorService = asyncExecutorService;
+                if(executorService == null) {
+                    executorService = new AsyncExecutor(8, 1024, new ThreadPoolExecutor.AbortPolicy());
+                    asyncExecutorService = executorService;
+                }
+            }
         }
-        return asyncExecutorService;
+        return executorService;
+    }
+
+    /**
+     * @param asyncExecutorService 执行异步servlet的执行器，由容器统一创建与关闭
+     */
+    public void setAsyncExecutorService(ExecutorService asyncExecutorService) {
+        this.asyncExecutorService = asyncExecutorService;
     }
 
     public long getAsyncTimeout(){
@@ -135,6 +197,23 @@ public class ServletContext implements javax.servlet.ServletContext {
         this.file = file;
     }
 
+    /**
+     * @return 部署jar的静态资源管理，没有部署jar时返回null
+     */
+    public StaticResourceManager getStaticResourceManager() {
+        if (staticResourceManager == null && file != null) {
+            synchronized (this) {
+                if (staticResourceManager == null) {
+                    staticResourceManager = new StaticResourceManager(file,
+                            getInitParameter("staticResourceCacheSize", 32L * 1024 * 1024),
+                            getInitParameter("staticResourceContentSize", 64 * 1024),
+                            compressionConfig);
+                }
+            }
+        }
+        return staticResourceManager;
+    }
+
     public void setFile(URL url) {
         try{
             this.file = new File(url.toURI());
@@ -143,6 +222,17 @@ public class ServletContext implements javax.servlet.ServletContext {
         }
     }
 
+    /**
+     * 部署jar的servlet映射与静态资源都在以jar名（不含扩展名）为前缀的路径下，如/sample2
+     * @return 请求路由到本上下文的路径前缀，没有部署jar时为空串（根路径）
+     */
+    public String getDeployPath() {
+        if (file == null) {
+            return "";
+        }
+        return "/" + StrUtil.subBefore(file.getName(), ".", true);
+    }
+
     @Override
     public String getContextPath() {
         return contextPath;
@@ -229,8 +319,31 @@ public class ServletContext implements javax.servlet.ServletContext {
 
     @Override
     public ServletRequestDispatcher getRequestDispatcher(String path) {
-        String servletName = servletUrlPatternMapper.getServletNameByRequestURI(path);
-        return getNamedDispatcher(servletName);
+        //按规范化的路径匹配与缓存，同一资源的不同写法共用一个缓存项，也不能用"//"、".."、路径参数绕过映射
+        String key = ServletUtil.normalizePath(path);
+        if (key == null) {
+            return null;
+        }
+        Cache<String, ServletRequestDispatcher> cache = this.dispatcherCache;
+        ServletRequestDispatcher dispatcher = cache.getIfPresent(key);
+        if (dispatcher == null) {
+            RequestUrlPatternMapper.MappingData mappingData = servletUrlPatternMapper.getMappingData(key);
+            if (mappingData == null) {
+                return null;
+            }
+            dispatcher = new ServletRequestDispatcher(this, key, mappingData);
+            cache.put(key, dispatcher);
+        }
+        return dispatcher;
+    }
+
+    /**
+     * 只做路径匹配，不创建过滤器链
+     * @param requestURI 请求URI
+     * @return 请求URI映射到的servlet名称
+     */
+    public String getServletNameByRequestURI(String requestURI) {
+        return servletUrlPatternMapper.getServletNameByRequestURI(requestURI);
     }
 
     @Override
@@ -238,21 +351,30 @@ public class ServletContext implements javax.servlet.ServletContext {
         Servlet servlet;
         try {
             servlet = null == name ? null : getServlet(name);
-            if (servlet == null) {
-                return null;
-            }
-
-            //TODO 过滤器的urlPatter解析
-            List<Filter> allNeedFilters = new ArrayList<>();
-            for (ServletFilterRegistration registration : filterRegistrationMap.values()) {
-                allNeedFilters.add(registration.getFilter());
-            }
-            FilterChain filterChain = new ServletFilterChain(servlet, allNeedFilters);
-            return new ServletRequestDispatcher(this, filterChain);
         } catch (ServletException e) {
-            logger.error("Throwing exception when getting Filter from ServletFilterRegistration of name " + name, e);
+            logger.error("Throwing exception when getting Servlet of name " + name, e);
             return null;
         }
+        if (servlet == null) {
+            return null;
+        }
+        return new ServletRequestDispatcher(this, name, servlet);
+    }
+
+    /**
+     * @param servletName    目标servlet名称
+     * @param dispatcherType 派发类型
+     * @param uri            用于匹配url-pattern的请求URI
+     * @return 需要执行的过滤器
+     */
+    Filter[] getFilters(String servletName, DispatcherType dispatcherType, String uri) {
+        return filterMapper.getFilters(servletName, dispatcherType, uri);
+    }
+
+    void addFilterMapping(Filter filter, EnumSet<DispatcherType> dispatcherTypes, boolean isMatchAfter,
+                          String[] urlPatterns, String[] servletNames) {
+        filterMapper.addMapping(filter, dispatcherTypes, isMatchAfter, urlPatterns, servletNames);
+        this.dispatcherCache = newDispatcherCache();
     }
 
     @Override
@@ -427,7 +549,7 @@ public class ServletContext implements javax.servlet.ServletContext {
 
     @Override
     public FilterRegistration.Dynamic addFilter(String filterName, Filter filter) {
-        ServletFilterRegistration registration = new ServletFilterRegistration(filterName,filter);
+        ServletFilterRegistration registration = new ServletFilterRegistration(filterName,filter,this);
         filterRegistrationMap.put(filterName,registration);
         return registration;
     }
@@ -467,6 +589,25 @@ public class ServletContext implements javax.servlet.ServletContext {
         return sessionCookieConfig;
     }
 
+    public ServletCompressionConfig getCompressionConfig() {
+        return compressionConfig;
+    }
+
+    public void setCompressionConfig(ServletCompressionConfig compressionConfig) {
+        this.compressionConfig = compressionConfig;
+    }
+
+    public HttpDataFactory getHttpDataFactory() {
+        return httpDataFactory;
+    }
+
+    /**
+     * @param fileSizeThreshold 表单字段与上传文件超过该大小（字节）时写入临时文件，之前保存在内存中
+     */
+    public void setFileSizeThreshold(long fileSizeThreshold) {
+        this.httpDataFactory = new DefaultHttpDataFactory(fileSizeThreshold);
+    }
+
     @Override
     public void setSessionTrackingModes(Set<SessionTrackingMode> sessionTrackingModes) {
         sessionTrackingModeSet = sessionTrackingModes;
@@ -1,35 +1,67 @@
 package com.abchina.servlet;
 
-import cn.hutool.core.util.StrUtil;
-import com.abchina.util.FileUtils;
-import org.springframework.util.StreamUtils;
-
-import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.file.Files;
 
 /**
  *
  *  默认servlet
+ *  从部署jar的静态资源管理中获取资源，小文件从内存缓存发送，大文件以文件零拷贝的方式发送
+ *  客户端接受时发送预压缩的变体，带有ETag、Last-Modified，客户端缓存有效时响应304（命中缓存的条件请求通常在事件循环上就已经被应答）
  */
 public class ServletDefaultHttpServlet extends HttpServlet {
     @Override
     protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         com.abchina.servlet.ServletContext servletContext = (com.abchina.servlet.ServletContext) req.getServletContext();
 
-        File jarFile = servletContext.getFile();
-        String contextPath = "/";
-        if(jarFile != null){
-            contextPath = StrUtil.subBefore(jarFile.getName(), ".", true) + "/";
+        StaticResourceManager resourceManager = servletContext.getStaticResourceManager();
+        if (resourceManager == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
         }
-        String path = StrUtil.subAfter(req.getRequestURI(), contextPath, true);
+        String path = resourceManager.resolvePath(req.getRequestURI());
 
-        byte[] bytes = FileUtils.readFileFromJar(jarFile, path);
-        resp.getOutputStream().write(bytes);
+        StaticResource resource = resourceManager.getResource(path);
+        if (resource == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        resource = resource.select(req.getHeader("Accept-Encoding"));
+        if (resource.isVaryByEncoding()) {
+            resp.setHeader("Vary", "Accept-Encoding");
+        }
+        if (resource.getContentEncoding() != null) {
+            resp.setHeader("Content-Encoding", resource.getContentEncoding());
+        }
+        resp.setHeader("ETag", resource.getETag());
+        resp.setHeader("Last-Modified", resource.getLastModifiedHeader());
+        if (resource.isNotModified(req.getHeader("If-None-Match"), req.getHeader("If-Modified-Since"))) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        if (resource.getContentType() != null) {
+            resp.setContentType(resource.getContentType());
+        }
+        resp.setContentLengthLong(resource.getLength());
+        if ("HEAD".equalsIgnoreCase(req.getMethod())) {
+            return;
+        }
+
+        ServletOutputStream outputStream = resp.getOutputStream();
+        if (outputStream instanceof com.abchina.servlet.ServletOutputStream) {
+            com.abchina.servlet.ServletOutputStream nettyOutputStream = (com.abchina.servlet.ServletOutputStream) outputStream;
+            if (resource.hasContent()) {
+                nettyOutputStream.write(resource.getContent());
+            } else {
+                nettyOutputStream.writeFile(resource.getFile(), 0, resource.getLength());
+            }
+        } else {
+            Files.copy(resource.getFile().toPath(), outputStream);
+        }
     }
 }
@@ -2,7 +2,6 @@ package com.abchina.servlet;
 
 import javax.servlet.*;
 import java.io.IOException;
-import java.util.Iterator;
 
 /**
  * 过滤器链
@@ -10,14 +9,15 @@ import java.util.Iterator;
 public class ServletFilterChain implements FilterChain {
 
     /**
-     * 考虑到每个请求只有一个线程处理，而且ServletContext在每次请求时都会new 一个SimpleFilterChain对象
-     * 所以这里把过滤器链的Iterator作为FilterChain的私有变量，没有线程安全问题
+     * 过滤器数组由ServletFilterMapper预先算好，多个请求共用，这里只记录执行到的位置
+     * 每次派发new一个FilterChain对象，一个请求只有一个线程处理，没有线程安全问题
      */
-    private final Iterator<Filter> filterIterator;
+    private final Filter[] filters;
     private final Servlet servlet;
+    private int pos;
 
-    public ServletFilterChain(Servlet servlet, Iterable<Filter> filters) throws ServletException {
-        this.filterIterator = filters.iterator();
+    public ServletFilterChain(Servlet servlet, Filter[] filters) {
+        this.filters = filters;
         this.servlet = servlet;
     }
 
@@ -28,8 +28,8 @@ public class ServletFilterChain implements FilterChain {
      */
     @Override
     public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
-        if (filterIterator.hasNext()) {
-            Filter filter = filterIterator.next();
+        if (pos < filters.length) {
+            Filter filter = filters[pos++];
             filter.doFilter(request, response, this);
         } else {
             servlet.service(request, response);
@@ -0,0 +1,270 @@
+package com.abchina.servlet;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 保存过滤器的映射关系，计算每次派发要执行的过滤器链
+ *
+ * 映射按声明顺序排列，isMatchAfter为false的映射排在isMatchAfter为true的映射之前；
+ * 一条链中先是url-pattern匹配的过滤器，再是servlet-name匹配的过滤器，同一个过滤器只执行一次
+ *
+ * 每个（servlet，派发类型）第一次派发时编译出链模板：只有与路径无关的映射时直接得到固定的过滤器数组；
+ * 有路径相关的映射时，请求路径命中的映射组成一个位图（路径类别），每个路径类别的过滤器数组只计算一次
+ */
+public class ServletFilterMapper {
+
+    private static final Filter[] NO_FILTERS = new Filter[0];
+    //位图用long表示，候选映射超过64个时不缓存路径类别
+    private static final int MAX_CANDIDATES = 64;
+    private static final int MAX_PATH_CLASSES = 64;
+
+    private final String contextPath;
+    private final List<FilterMapping> filterMappings = new ArrayList<>();
+    private int insertPoint; //isMatchAfter为false的映射插入的位置
+    //servletName -> 按DispatcherType.ordinal()排列的链模板，映射变化时清空
+    private final ConcurrentMap<String, ChainTemplate[]> chainTemplateMap = new ConcurrentHashMap<>();
+
+    public ServletFilterMapper(String contextPath) {
+        this.contextPath = contextPath;
+    }
+
+    /**
+     * 增加映射关系
+     *
+     * @param filter          过滤器
+     * @param dispatcherTypes 派发类型，为null时只匹配REQUEST
+     * @param isMatchAfter    是否排在已声明的映射之后
+     * @param urlPatterns     url匹配规则，可以为null
+     * @param servletNames    servlet名称，*匹配所有servlet，可以为null
+     */
+    public synchronized void addMapping(Filter filter, EnumSet<DispatcherType> dispatcherTypes, boolean isMatchAfter,
+                                        String[] urlPatterns, String[] servletNames) {
+        int dispatcherMask = 0;
+        if (dispatcherTypes == null || dispatcherTypes.isEmpty()) {
+            dispatcherMask = 1 << DispatcherType.REQUEST.ordinal();
+        } else {
+            for (DispatcherType dispatcherType : dispatcherTypes) {
+                dispatcherMask |= 1 << dispatcherType.ordinal();
+            }
+        }
+        List<FilterMapping> mappings = new ArrayList<>();
+        if (urlPatterns != null) {
+            for (String urlPattern : urlPatterns) {
+                if (urlPattern != null) {
+                    mappings.add(FilterMapping.forUrlPattern(filter, dispatcherMask, urlPattern));
+                }
+            }
+        }
+        if (servletNames != null) {
+            for (String servletName : servletNames) {
+                if (servletName != null) {
+                    mappings.add(new FilterMapping(filter, dispatcherMask, FilterMapping.SERVLET_NAME, servletName));
+                }
+            }
+        }
+        if (isMatchAfter) {
+            filterMappings.addAll(mappings);
+        } else {
+            filterMappings.addAll(insertPoint, mappings);
+            insertPoint += mappings.size();
+        }
+        chainTemplateMap.clear();
+    }
+
+    /**
+     * @param servletName    目标servlet名称
+     * @param dispatcherType 派发类型
+     * @param uri            请求URI，可以带查询字符串
+     * @return 需要执行的过滤器，按执行顺序排列，调用方不能修改
+     */
+    public Filter[] getFilters(String servletName, DispatcherType dispatcherType, String uri) {
+        ChainTemplate[] templates = chainTemplateMap.get(servletName);
+        if (templates == null) {
+            templates = compile(servletName);
+        }
+        return templates[dispatcherType.ordinal()].getFilters(contextPath, uri);
+    }
+
+    private synchronized ChainTemplate[] compile(String servletName) {
+        ChainTemplate[] templates = chainTemplateMap.get(servletName);
+        if (templates != null) {
+            return templates;
+        }
+        DispatcherType[] dispatcherTypes = DispatcherType.values();
+        templates = new ChainTemplate[dispatcherTypes.length];
+        for (DispatcherType dispatcherType : dispatcherTypes) {
+            int dispatcherBit = 1 << dispatcherType.ordinal();
+            List<FilterMapping> candidates = new ArrayList<>();
+            boolean pathDependent = false;
+            for (FilterMapping mapping : filterMappings) {
+                if ((mapping.dispatcherMask & dispatcherBit) != 0 && mapping.type != FilterMapping.SERVLET_NAME) {
+                    candidates.add(mapping);
+                    pathDependent |= mapping.type != FilterMapping.ALL;
+                }
+            }
+            for (FilterMapping mapping : filterMappings) {
+                if ((mapping.dispatcherMask & dispatcherBit) != 0 && mapping.type == FilterMapping.SERVLET_NAME
+                        && (mapping.pattern.equals("*") || mapping.pattern.equals(servletName))) {
+                    candidates.add(mapping);
+                }
+            }
+            FilterMapping[] candidateArray = candidates.toArray(new FilterMapping[candidates.size()]);
+            templates[dispatcherType.ordinal()] = pathDependent ?
+                    new ChainTemplate(candidateArray) : new ChainTemplate(toFilters(candidateArray, -1L));
+        }
+        chainTemplateMap.put(servletName, templates);
+        return templates;
+    }
+
+    /**
+     * @param candidates 候选映射
+     * @param mask       命中的候选映射，第i位对应第i个候选映射
+     * @return 去重后的过滤器
+     */
+    private static Filter[] toFilters(FilterMapping[] candidates, long mask) {
+        List<Filter> filters = new ArrayList<>(candidates.length);
+        for (int i = 0; i < candidates.length; i++) {
+            if ((mask & (1L << i)) != 0 && !filters.contains(candidates[i].filter)) {
+                filters.add(candidates[i].filter);
+            }
+        }
+        return filters.isEmpty() ? NO_FILTERS : filters.toArray(new Filter[filters.size()]);
+    }
+
+    /*
+     * 以下是用到的内部类
+     */
+
+    /**
+     * 一个（servlet，派发类型）的过滤器链模板，创建后不再改变（路径类别的缓存除外）
+     */
+    private static class ChainTemplate {
+        final Filter[] filters; //与路径无关时的过滤器链
+        final FilterMapping[] candidates; //与路径相关时的候选映射
+        //路径类别的位图与对应的过滤器链，写时复制
+        volatile long[] pathClasses = new long[0];
+        volatile Filter[][] pathChains = new Filter[0][];
+
+        ChainTemplate(Filter[] filters) {
+            this.filters = filters;
+            this.candidates = null;
+        }
+
+        ChainTemplate(FilterMapping[] candidates) {
+            this.filters = null;
+            this.candidates = candidates;
+        }
+
+        Filter[] getFilters(String contextPath, String uri) {
+            if (filters != null) {
+                return filters;
+            }
+            // 处理ContextPath与查询字符串，只在[start,end)上匹配，不截取子串
+            int start = uri.startsWith(contextPath) ? contextPath.length() : 0;
+            int end = uri.indexOf('?', start);
+            if (end < 0) {
+                end = uri.length();
+            }
+            if (start == end) {
+                uri = "/";
+                start = 0;
+                end = 1;
+            }
+            if (candidates.length > MAX_CANDIDATES) {
+                List<Filter> list = new ArrayList<>();
+                for (FilterMapping candidate : candidates) {
+                    if (candidate.matches(uri, start, end) && !list.contains(candidate.filter)) {
+                        list.add(candidate.filter);
+                    }
+                }
+                return list.toArray(new Filter[list.size()]);
+            }
+
+            long mask = 0;
+            for (int i = 0; i < candidates.length; i++) {
+                if (candidates[i].matches(uri, start, end)) {
+                    mask |= 1L << i;
+                }
+            }
+            long[] classes = pathClasses;
+            Filter[][] chains = pathChains;
+            for (int i = 0; i < classes.length; i++) {
+                if (classes[i] == mask) {
+                    return chains[i];
+                }
+            }
+            Filter[] chain = toFilters(candidates, mask);
+            synchronized (this) {
+                if (pathClasses.length < MAX_PATH_CLASSES) {
+                    long[] newClasses = Arrays.copyOf(pathClasses, pathClasses.length + 1);
+                    Filter[][] newChains = Arrays.copyOf(pathChains, pathChains.length + 1);
+                    newClasses[pathClasses.length] = mask;
+                    newChains[pathChains.length] = chain;
+                    //先发布链再发布位图，读到位图时一定能读到对应的链
+                    pathChains = newChains;
+                    pathClasses = newClasses;
+                }
+            }
+            return chain;
+        }
+    }
+
+    private static class FilterMapping {
+        static final int ALL = 0;          // /*
+        static final int EXACT = 1;        // 精确匹配
+        static final int PREFIX = 2;       // 路径匹配，pattern为去掉/*的前缀
+        static final int EXTENSION = 3;    // 扩展名匹配，pattern为.ext
+        static final int SERVLET_NAME = 4; // servlet名称匹配
+
+        final Filter filter;
+        final int dispatcherMask;
+        final int type;
+        final String pattern;
+
+        FilterMapping(Filter filter, int dispatcherMask, int type, String pattern) {
+            this.filter = filter;
+            this.dispatcherMask = dispatcherMask;
+            this.type = type;
+            this.pattern = pattern;
+        }
+
+        static FilterMapping forUrlPattern(Filter filter, int dispatcherMask, String urlPattern) {
+            if (urlPattern.equals("/*")) {
+                return new FilterMapping(filter, dispatcherMask, ALL, urlPattern);
+            } else if (urlPattern.endsWith("/*")) {
+                return new FilterMapping(filter, dispatcherMask, PREFIX, urlPattern.substring(0, urlPattern.length() - 2));
+            } else if (urlPattern.startsWith("*.")) {
+                return new FilterMapping(filter, dispatcherMask, EXTENSION, urlPattern.substring(1));
+            } else {
+                return new FilterMapping(filter, dispatcherMask, EXACT, urlPattern.isEmpty() ? "/" : urlPattern);
+            }
+        }
+
+        boolean matches(String uri, int start, int end) {
+            int length = end - start;
+            switch (type) {
+                case ALL:
+                case SERVLET_NAME:
+                    return true;
+                case EXACT:
+                    return length == pattern.length() && uri.regionMatches(start, pattern, 0, length);
+                case PREFIX:
+                    return length >= pattern.length() && uri.regionMatches(start, pattern, 0, pattern.length())
+                            && (length == pattern.length() || uri.charAt(start + pattern.length()) == '/');
+                case EXTENSION:
+                    return length > pattern.length() && uri.regionMatches(end - pattern.length(), pattern, 0, pattern.length());
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return pattern;
+        }
+    }
+}
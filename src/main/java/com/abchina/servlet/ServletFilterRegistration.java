@@ -3,10 +3,7 @@ package com.abchina.servlet;
 import javax.servlet.DispatcherType;
 import javax.servlet.Filter;
 import javax.servlet.FilterRegistration;
-import java.util.Collection;
-import java.util.EnumSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 
 /**
  *
@@ -16,10 +13,16 @@ public class ServletFilterRegistration implements FilterRegistration,FilterRegis
 
     private String filterName;
     private Filter filter;
+    private ServletContext servletContext;
+    private Set<String> urlPatternMappings;
+    private Set<String> servletNameMappings;
 
-    public ServletFilterRegistration(String filterName, Filter filter) {
+    public ServletFilterRegistration(String filterName, Filter filter, ServletContext servletContext) {
         this.filterName = filterName;
         this.filter = filter;
+        this.servletContext = servletContext;
+        this.urlPatternMappings = new LinkedHashSet<>();
+        this.servletNameMappings = new LinkedHashSet<>();
     }
 
     public Filter getFilter() {
@@ -28,32 +31,40 @@ public class ServletFilterRegistration implements FilterRegistration,FilterRegis
 
     @Override
     public void addMappingForServletNames(EnumSet<DispatcherType> dispatcherTypes, boolean isMatchAfter, String... servletNames) {
-
+        if (servletNames == null) {
+            return;
+        }
+        servletNameMappings.addAll(Arrays.asList(servletNames));
+        servletContext.addFilterMapping(filter, dispatcherTypes, isMatchAfter, null, servletNames);
     }
 
     @Override
     public Collection<String> getServletNameMappings() {
-        return null;
+        return servletNameMappings;
     }
 
     @Override
     public void addMappingForUrlPatterns(EnumSet<DispatcherType> dispatcherTypes, boolean isMatchAfter, String... urlPatterns) {
-
+        if (urlPatterns == null) {
+            return;
+        }
+        urlPatternMappings.addAll(Arrays.asList(urlPatterns));
+        servletContext.addFilterMapping(filter, dispatcherTypes, isMatchAfter, urlPatterns, null);
     }
 
     @Override
     public Collection<String> getUrlPatternMappings() {
-        return null;
+        return urlPatternMappings;
     }
 
     @Override
     public String getName() {
-        return null;
+        return filterName;
     }
 
     @Override
     public String getClassName() {
-        return null;
+        return filter.getClass().getName();
     }
 
     @Override
@@ -3,9 +3,24 @@ package com.abchina.servlet;
 import com.abchina.core.constants.HttpConstants;
 import com.abchina.util.ObjectUtil;
 import com.abchina.util.ServletUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.AsciiString;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaderUtil;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http.multipart.HttpData;
+import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder;
+import io.netty.handler.codec.http.multipart.InterfaceHttpData;
+import io.netty.util.Recycler;
+import io.netty.util.ResourceLeak;
+import io.netty.util.ResourceLeakDetector;
+import io.netty.util.concurrent.EventExecutor;
 
 import javax.servlet.DispatcherType;
 import javax.servlet.ServletException;
@@ -22,15 +37,20 @@ import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.charset.Charset;
 import java.security.Principal;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import static com.abchina.util.ObjectUtil.EMPTY;
 
 public class ServletHttpServletRequest implements javax.servlet.http.HttpServletRequest {
 
     public static final String DISPATCHER_TYPE = ServletRequestDispatcher.class.getName().concat(".DISPATCHER_TYPE");
+    private static final String FORM_URLENCODED = HttpHeaderValues.APPLICATION_X_WWW_FORM_URLENCODED.toString();
+    private static final int DISCARD_THRESHOLD = 64 * 1024;
 
     private String servletPath;
     private String queryString;
@@ -52,32 +72,165 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
     private Locale locale;
 
     private int sessionIdSource;
+    private int streamId; //HTTP/2流ID，HTTP/1.1请求为0
+    private int sequence; //HTTP/1.1连接上的请求序号，用于管线化的响应排序
+    private Executor dispatchExecutor; //执行servlet的业务执行器
     private ServletHttpSession httpSession;
     private ServletInputStream inputStream;
     private ServletContext servletContext;
     private ServletAsyncContext asyncContext;
+    private ServletHttpServletResponse servletResponse;
+
+    private HttpRequest request;
+    private HttpHeaders headers;
+    private HttpPostRequestDecoder postRequestDecoder; //表单请求体的解码器，持有解码出的字段与上传文件
+    private List<Part> parts;
+
+    //请求对象由Recycler复用，startAsync之后没有complete就被丢弃的请求由泄漏检测报告
+    //Recycler按线程缓存对象，取出与归还都在连接的事件循环上，业务线程（尤其是每个请求一个的虚拟线程）上归还的对象不会再被取用
+    private static final Recycler<ServletHttpServletRequest> RECYCLER = new Recycler<ServletHttpServletRequest>() {
+        @Override
+        protected ServletHttpServletRequest newObject(Handle<ServletHttpServletRequest> handle) {
+            return new ServletHttpServletRequest(handle);
+        }
+    };
+    private static final ResourceLeakDetector<ServletHttpServletRequest> LEAK_DETECTOR = new ResourceLeakDetector<>(ServletHttpServletRequest.class);
+
+    private final Recycler.Handle<ServletHttpServletRequest> handle;
+    private final Runnable recycleTask;
+    private ResourceLeak leak;
+    private EventExecutor eventLoop;
+
+    private ServletHttpServletRequest(Recycler.Handle<ServletHttpServletRequest> handle) {
+        this.handle = handle;
+        this.recycleTask = () -> handle.recycle(this);
+    }
 
-    private final HttpRequest request;
-    private final HttpHeaders headers;
+    /**
+     * 从对象池取出一个请求对象，请求结束后调用recycle()归还，只在事件循环上调用
+     * @param ctx 请求所在的handler上下文，对象最终归还到它的事件循环
+     */
+    public static ServletHttpServletRequest newInstance(ChannelHandlerContext ctx, ServletInputStream inputStream, ServletContext servletContext, HttpRequest request) {
+        ServletHttpServletRequest instance = RECYCLER.get();
+        instance.eventLoop = ctx.executor();
+        instance.request = request;
+        instance.headers = request.headers();
+        instance.inputStream = inputStream;
+        instance.servletContext = servletContext;
+        instance.asyncSupportedFlag = true;
+        return instance;
+    }
 
-    public ServletHttpServletRequest(ServletInputStream inputStream, ServletContext servletContext, HttpRequest request) {
-        this.request = request;
-        this.headers = request.headers();
-        this.attributeMap = null;
-        this.inputStream = inputStream;
-        this.servletContext = servletContext;
-        this.asyncSupportedFlag = true;
-        this.decodeParameterByUrlFlag = false;
-        this.decodeParameterByBodyFlag = false;
-        this.decodeCookieFlag = false;
-        this.parsePathsFlag = false;
-        this.usingReaderFlag = false;
+    /**
+     * 请求结束（响应已关闭或异步上下文已complete）后归还对象池，所有字段恢复初始状态，之后不能再使用
+     */
+    public void recycle() {
+        servletPath = null;
+        queryString = null;
+        pathInfo = null;
+        requestUri = null;
+        characterEncoding = null;
+        sessionId = null;
+        parsePathsFlag = false;
+        decodeCookieFlag = false;
+        decodeParameterByUrlFlag = false;
+        decodeParameterByBodyFlag = false;
+        usingReaderFlag = false;
+        asyncSupportedFlag = false;
+        if (attributeMap != null) {
+            attributeMap.clear(); //保留Map复用
+        }
+        parameterMap = null;
+        cookies = null;
+        locale = null;
+        sessionIdSource = 0;
+        streamId = 0;
+        sequence = 0;
+        dispatchExecutor = null;
+        httpSession = null;
+        inputStream = null;
+        servletContext = null;
+        asyncContext = null;
+        servletResponse = null;
+        request = null;
+        headers = null;
+        if (postRequestDecoder != null) {
+            postRequestDecoder.destroy(); //删除临时文件
+            postRequestDecoder = null;
+        }
+        parts = null;
+        if (leak != null) {
+            leak.close();
+            leak = null;
+        }
+        EventExecutor eventLoop = this.eventLoop;
+        this.eventLoop = null;
+        if (eventLoop.inEventLoop()) {
+            handle.recycle(this);
+        } else {
+            try {
+                eventLoop.execute(recycleTask);
+            } catch (RejectedExecutionException e) {
+                //事件循环已关闭，对象不再复用
+            }
+        }
     }
 
     public HttpRequest getNettyRequest() {
         return request;
     }
 
+    /**
+     * @return HTTP/2请求所在的流ID，HTTP/1.1请求为0
+     */
+    public int getStreamId() {
+        return streamId;
+    }
+
+    public void setStreamId(int streamId) {
+        this.streamId = streamId;
+    }
+
+    /**
+     * @return HTTP/1.1连接上的请求序号（从1开始），响应按序号顺序写出；HTTP/2请求为0
+     */
+    public int getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(int sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return 执行本次请求的servlet的业务执行器，非阻塞IO的回调（如WriteListener）也交给它执行
+     */
+    public Executor getDispatchExecutor() {
+        return dispatchExecutor;
+    }
+
+    public void setDispatchExecutor(Executor dispatchExecutor) {
+        this.dispatchExecutor = dispatchExecutor;
+    }
+
+    /**
+     * @return 本次请求的输入流，不影响getInputStream()/getReader()的互斥校验
+     */
+    public ServletInputStream getNettyInputStream() {
+        return inputStream;
+    }
+
+    /**
+     * 创建响应时关联，startAsync()要用到
+     */
+    void setServletResponse(ServletHttpServletResponse servletResponse) {
+        this.servletResponse = servletResponse;
+    }
+
+    ServletHttpServletResponse getServletResponse() {
+        return servletResponse;
+    }
+
     private Map<String, Object> getAttributeMap() {
         if(attributeMap == null){
             attributeMap = new ConcurrentHashMap<>(16);
@@ -99,18 +252,77 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
 
     private void decodeParameter(){
         Map<String,String[]> parameterMap = new HashMap<>(16);
-        if(HttpConstants.GET.equalsIgnoreCase(getMethod())){
-            ServletUtil.decodeByUrl(parameterMap,request.uri());
-            this.decodeParameterByUrlFlag = true;
-        }else {
-//            ServletUtil.decodeByBody(parameterMap,request);
-//            this.decodeParameterByBodyFlag = true;
+        ServletUtil.decodeByUrl(parameterMap,request.uri());
+        this.decodeParameterByUrlFlag = true;
+        if(isFormBody()){
+            try {
+                ServletUtil.decodeByBody(parameterMap, decodeBody().getBodyHttpDatas());
+            } catch (IOException | DecoderException e) {
+                throw new IllegalStateException("Failed to decode request body", e);
+            }
+            this.decodeParameterByBodyFlag = true;
         }
         this.parameterMap = parameterMap;
     }
 
+    /**
+     * servlet标准：POST请求的表单（x-www-form-urlencoded或multipart/form-data）也是请求参数
+     */
+    private boolean isFormBody(){
+        if(!HttpConstants.POST.equalsIgnoreCase(getMethod())){
+            return false;
+        }
+        String contentType = getContentType();
+        return contentType != null && (contentType.regionMatches(true, 0, FORM_URLENCODED, 0, FORM_URLENCODED.length())
+                || HttpPostRequestDecoder.isMultipart(request));
+    }
+
+    /**
+     * 从输入流按块读入请求体交给Netty的表单解码器，请求体不会整个聚合在内存中；
+     * 超过阈值的字段与文件由解码器写入临时文件，请求结束时（recycle）删除
+     * @return 已经读完请求体的解码器
+     */
+    private HttpPostRequestDecoder decodeBody() throws IOException {
+        if(postRequestDecoder != null){
+            return postRequestDecoder;
+        }
+        HttpPostRequestDecoder decoder = new HttpPostRequestDecoder(servletContext.getHttpDataFactory(), request, getBodyCharset());
+        //已解码的部分及时从未解码缓冲区丢弃，缓冲区大小不随上传文件增长（默认10M才丢弃）
+        decoder.setDiscardThreshold(DISCARD_THRESHOLD);
+        try {
+            //聚合模式下请求本身带有请求体，解码器构造时已经全部解码
+            if (!(request instanceof HttpContent)) {
+                HttpContent content;
+                while ((content = inputStream.readContent()) != null) {
+                    try {
+                        decoder.offer(content);
+                    } finally {
+                        content.release();
+                    }
+                }
+                decoder.offer(LastHttpContent.EMPTY_LAST_CONTENT);
+            }
+        } catch (IOException | RuntimeException e) {
+            decoder.destroy();
+            throw e;
+        }
+        postRequestDecoder = decoder;
+        return decoder;
+    }
+
+    /**
+     * @return 请求体的字符集，客户端给出的字符集不存在或名称不合法时使用上下文的默认字符集
+     */
+    private Charset getBodyCharset() {
+        try {
+            return Charset.forName(getCharacterEncoding());
+        } catch (IllegalArgumentException e) {
+            return servletContext.getDefaultCharset();
+        }
+    }
+
     private void decodeCookie(){
-        CharSequence value = getHeader(HttpHeaderNames.COOKIE.toString());
+        CharSequence value = getHeader(HttpHeaderNames.COOKIE);
         if (value == null) {
             return;
         }
@@ -133,7 +345,7 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
             servletPath = servletPath.substring(0, queryInx);
         }
         this.servletPath = servletPath;
-        this.requestUri = this.servletContext.getContextPath() + servletPath; //TODO 加上pathInfo
+        this.requestUri = this.servletContext.getContextPath() + servletPath;
         this.pathInfo = null;
 
         parsePathsFlag = true;
@@ -182,17 +394,27 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
 
     @Override
     public String getHeader(String name) {
-        return headers.getAndConvert(name);
+        return getHeader((CharSequence) name);
+    }
+
+    /**
+     * Netty的请求头按名称的哈希查找，不区分大小写；内部调用直接传AsciiString常量，哈希值已缓存
+     * 解码器读入的值本身就是String，AsciiString（HTTP/2）也缓存了toString的结果，重复读取不再转换
+     */
+    private String getHeader(CharSequence name) {
+        CharSequence value = headers.get(name);
+        return value == null ? null : value.toString();
     }
 
+    /**
+     * 按到达顺序枚举不重复的名称，枚举时直接遍历请求头，不先收集到列表
+     */
     @Override
     public Enumeration<String> getHeaderNames() {
-        Set<CharSequence> nameSet = headers.names();
-        List<String> nameList = new LinkedList<>();
-        for(CharSequence name : nameSet){
-            nameList.add(name.toString());
+        if (headers.isEmpty()) {
+            return Collections.emptyEnumeration();
         }
-        return Collections.enumeration(nameList);
+        return new HeaderNameEnumeration(headers.iterator());
     }
 
 
@@ -202,10 +424,8 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
         return new StringBuffer(request.uri());
     }
 
-    //TODO ServletPath和PathInfo应该是互补的，根据URL-Pattern匹配的路径不同而不同
-    // 现在把PathInfo恒为null，ServletPath恒为uri-contextPath
-    // 可以满足SpringBoot的需求，但不满足ServletPath和PathInfo的语义
-    // 需要在RequestUrlPatternMapper匹配的时候设置,new NettyRequestDispatcher的时候传入MapperData
+    // ServletPath和PathInfo在派发时按匹配到的URL-Pattern设置（见setServletPathAndPathInfo）
+    // 派发之前PathInfo为null，ServletPath为uri-contextPath
     @Override
     public String getPathInfo() {
         checkAndParsePaths();
@@ -230,10 +450,105 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
         return this.servletPath;
     }
 
+    /**
+     * 按匹配到的url-pattern设置ServletPath与PathInfo，由请求转发器在派发时调用
+     * @param servletPath servlet路径
+     * @param pathInfo 路径匹配时url-pattern之后的部分，没有时为null
+     */
+    public void setServletPathAndPathInfo(String servletPath, String pathInfo) {
+        checkAndParsePaths();
+        this.servletPath = servletPath;
+        this.pathInfo = pathInfo;
+    }
+
 
+    /**
+     * 直接在请求头上遍历同名的值，不复制到中间列表
+     */
     @Override
     public Enumeration<String> getHeaders(String name) {
-        return Collections.enumeration(this.headers.getAllAndConvert(name));
+        if (!headers.contains(name)) {
+            return Collections.emptyEnumeration();
+        }
+        return new HeaderValueEnumeration(headers.iterator(), name);
+    }
+
+    /**
+     * 已经枚举过的名称按小写放在哈希集合中，同名（不区分大小写）的请求头只返回第一次出现的名称
+     */
+    private static final class HeaderNameEnumeration implements Enumeration<String> {
+        private final Iterator<Map.Entry<CharSequence, CharSequence>> iterator;
+        private final Set<AsciiString> seen = new HashSet<>();
+        private String next;
+
+        HeaderNameEnumeration(Iterator<Map.Entry<CharSequence, CharSequence>> iterator) {
+            this.iterator = iterator;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (iterator.hasNext()) {
+                CharSequence name = iterator.next().getKey();
+                if (seen.add(AsciiString.of(name).toLowerCase())) {
+                    next = name.toString();
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return next != null;
+        }
+
+        @Override
+        public String nextElement() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            String name = next;
+            advance();
+            return name;
+        }
+    }
+
+    private static final class HeaderValueEnumeration implements Enumeration<String> {
+        private final Iterator<Map.Entry<CharSequence, CharSequence>> iterator;
+        private final String name;
+        private String next;
+
+        HeaderValueEnumeration(Iterator<Map.Entry<CharSequence, CharSequence>> iterator, String name) {
+            this.iterator = iterator;
+            this.name = name;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (iterator.hasNext()) {
+                Map.Entry<CharSequence, CharSequence> entry = iterator.next();
+                if (AsciiString.equalsIgnoreCase(name, entry.getKey())) {
+                    next = entry.getValue().toString();
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return next != null;
+        }
+
+        @Override
+        public String nextElement() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            String value = next;
+            advance();
+            return value;
+        }
     }
 
 
@@ -337,9 +652,14 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
             return sessionId;
         }
 
-        String sessionId = ServletUtil.getCookieValue(getCookies(),HttpConstants.JSESSION_ID_COOKIE);
+        //Cookie[]还没有解码时直接扫描Cookie请求头，只取会话ID，getCookies()需要时才解码全部cookie
+        String sessionId = decodeCookieFlag ?
+                ServletUtil.getCookieValue(cookies,HttpConstants.JSESSION_ID_COOKIE) :
+                ServletUtil.getCookieValue(getHeader(HttpHeaderNames.COOKIE),HttpConstants.JSESSION_ID_COOKIE);
         if(ObjectUtil.isEmpty(sessionId)){
-            sessionId = getParameter(HttpConstants.JSESSION_ID_PARAMS);
+            //只查URL中的参数：响应提交时也会调用，不能在这里读取表单请求体
+            List<String> urlSessionIds = new QueryStringDecoder(request.uri()).parameters().get(HttpConstants.JSESSION_ID_PARAMS);
+            sessionId = urlSessionIds == null || urlSessionIds.isEmpty() ? null : urlSessionIds.get(0);
             if(ObjectUtil.isEmpty(sessionId)){
                 sessionIdSource = HttpConstants.SESSION_ID_SOURCE_NOT_FOUND_CREATE;
                 sessionId = UUID.randomUUID().toString().replace("-","");
@@ -370,11 +690,35 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
 
     @Override
     public Collection<Part> getParts() throws IOException, ServletException {
-        return null;
+        if(parts != null){
+            return parts;
+        }
+        if(!HttpPostRequestDecoder.isMultipart(request)){
+            throw new ServletException("Content-Type is not multipart/form-data");
+        }
+        List<InterfaceHttpData> bodyHttpDatas;
+        try {
+            bodyHttpDatas = decodeBody().getBodyHttpDatas();
+        } catch (DecoderException e) {
+            throw new ServletException("Failed to decode multipart request body", e);
+        }
+        List<Part> parts = new ArrayList<>(bodyHttpDatas.size());
+        for (InterfaceHttpData data : bodyHttpDatas) {
+            if (data instanceof HttpData) {
+                parts.add(new ServletPart((HttpData) data));
+            }
+        }
+        this.parts = Collections.unmodifiableList(parts);
+        return this.parts;
     }
 
     @Override
     public Part getPart(String name) throws IOException, ServletException {
+        for (Part part : getParts()) {
+            if (part.getName().equals(name)) {
+                return part;
+            }
+        }
         return null;
     }
 
@@ -418,12 +762,12 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
 
     @Override
     public long getContentLengthLong() {
-        return inputStream.getCurrentLength();
+        return HttpHeaderUtil.getContentLength(request, -1);
     }
 
     @Override
     public String getContentType() {
-        return getHeader(HttpHeaderNames.CONTENT_TYPE.toString());
+        return getHeader(HttpHeaderNames.CONTENT_TYPE);
     }
 
     @Override
@@ -452,12 +796,7 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
 
     @Override
     public String[] getParameterValues(String name) {
-        Collection<String[]> collection = getParameterMap().values();
-        List<String> list = new LinkedList<>();
-        for(String[] arr : collection){
-            Collections.addAll(list, arr);
-        }
-        return list.toArray(new String[list.size()]);
+        return getParameterMap().get(name);
     }
 
     @Override
@@ -470,6 +809,9 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
 
     @Override
     public String getProtocol() {
+        if (streamId > 0) { //HTTP/2请求被转换为HTTP/1.1格式的FullHttpRequest
+            return HttpConstants.HTTP_2_0;
+        }
         return request.protocolVersion().toString();
     }
 
@@ -555,7 +897,7 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
         }
 
         Locale locale;
-        String value = getHeader(HttpHeaderNames.ACCEPT_LANGUAGE.toString());
+        String value = getHeader(HttpHeaderNames.ACCEPT_LANGUAGE);
         if(value == null){
             locale = Locale.getDefault();
         }else {
@@ -610,14 +952,30 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
 
     @Override
     public ServletAsyncContext startAsync() throws IllegalStateException {
-        return startAsync(this,null);
+        return startAsync(this,servletResponse);
     }
 
+    /**
+     * 立即返回，之后由complete()或dispatch()结束响应，超过asyncTimeout时通知onTimeout并响应500
+     * 异步派发执行期间再次调用时沿用同一个异步上下文
+     */
     @Override
     public ServletAsyncContext startAsync(ServletRequest servletRequest, ServletResponse servletResponse) throws IllegalStateException {
-        ServletAsyncContext asyncContext = new ServletAsyncContext(servletContext,servletContext.getAsyncExecutorService(),servletRequest,servletResponse);
-        asyncContext.setTimeout(servletContext.getAsyncTimeout());
+        if (!asyncSupportedFlag) {
+            throw new IllegalStateException("Async is not supported by this request");
+        }
+        ServletAsyncContext asyncContext = this.asyncContext;
+        if (asyncContext != null) {
+            if (!asyncContext.restart(servletRequest, servletResponse)) {
+                throw new IllegalStateException("Async has already been started or completed");
+            }
+            return asyncContext;
+        }
+        asyncContext = new ServletAsyncContext(servletContext,servletContext.getAsyncExecutorService(),this,servletRequest,servletResponse);
         this.asyncContext = asyncContext;
+        //请求对象离开了dispatch的作用域，没有complete就被丢弃时报告泄漏
+        leak = LEAK_DETECTOR.open(this);
+        asyncContext.setTimeout(servletContext.getAsyncTimeout());
         return asyncContext;
     }
 
@@ -6,15 +6,21 @@ import com.google.common.base.Optional;
 import com.google.common.net.MediaType;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.AsciiString;
+import io.netty.util.CharsetUtil;
+import io.netty.util.Recycler;
+import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.FastThreadLocal;
 
 import javax.servlet.http.Cookie;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * 响应
@@ -35,10 +41,11 @@ public class ServletHttpServletResponse implements javax.servlet.http.HttpServle
         }
     };
 
-    private final ServletContext servletContext;
+    private ServletContext servletContext;
     private ServletHttpServletRequest httpServletRequest;
     private HttpResponse httpResponse;
     private ServletOutputStream outputStream;
+    private ServletWriter servletWriter;
     private boolean usingOutputStream;
     private PrintWriter writer;
     private boolean committed;
@@ -47,22 +54,75 @@ public class ServletHttpServletResponse implements javax.servlet.http.HttpServle
     private String characterEncoding;
     private Locale locale;
 
+    //响应对象与输出流（含缓冲区）一起复用；Netty的响应对象写出后归Netty所有，每次新建
+    //与请求对象一样，取出与归还都在连接的事件循环上（见ServletHttpServletRequest.recycle）
+    private static final Recycler<ServletHttpServletResponse> RECYCLER = new Recycler<ServletHttpServletResponse>() {
+        @Override
+        protected ServletHttpServletResponse newObject(Handle<ServletHttpServletResponse> handle) {
+            return new ServletHttpServletResponse(handle);
+        }
+    };
+
+    private final Recycler.Handle<ServletHttpServletResponse> handle;
+    private final Runnable recycleTask;
+    private EventExecutor eventLoop;
+
+    private ServletHttpServletResponse(Recycler.Handle<ServletHttpServletResponse> handle) {
+        this.handle = handle;
+        this.recycleTask = () -> handle.recycle(this);
+    }
+
     /**
-     * 构造方法
+     * 从对象池取出一个响应对象，请求结束后调用recycle()归还，只在事件循环上调用
      * @param ctx            Netty的Context
      * @param servletContext ServletContext
      * @param httpServletRequest servlet请求
      */
-    public ServletHttpServletResponse(ChannelHandlerContext ctx, ServletContext servletContext,ServletHttpServletRequest httpServletRequest) {
-        this.servletContext = servletContext;
+    public static ServletHttpServletResponse newInstance(ChannelHandlerContext ctx, ServletContext servletContext, ServletHttpServletRequest httpServletRequest) {
+        ServletHttpServletResponse instance = RECYCLER.get();
+        instance.eventLoop = ctx.executor();
+        instance.servletContext = servletContext;
         //Netty自带的http响应对象，初始化为200
-        this.httpResponse = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, false);
-        HttpHeaderUtil.setKeepAlive(httpResponse, HttpHeaderUtil.isKeepAlive(httpServletRequest.getNettyRequest()));
-        this.outputStream = new ServletOutputStream(ctx, this);
-        this.httpServletRequest = httpServletRequest;
-        this.characterEncoding = servletContext.getDefaultCharset().name();
+        instance.httpResponse = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, false);
+        HttpHeaderUtil.setKeepAlive(instance.httpResponse, HttpHeaderUtil.isKeepAlive(httpServletRequest.getNettyRequest()));
+        if (instance.outputStream == null) {
+            instance.outputStream = new ServletOutputStream(instance);
+            instance.servletWriter = new ServletWriter(instance.outputStream);
+        }
+        instance.outputStream.init(ctx);
+        instance.httpServletRequest = httpServletRequest;
+        httpServletRequest.setServletResponse(instance);
+        instance.characterEncoding = servletContext.getDefaultCharset().name();
+        return instance;
     }
 
+    /**
+     * 请求结束（输出流已关闭）后归还对象池，所有字段恢复初始状态，之后不能再使用
+     */
+    public void recycle() {
+        servletContext = null;
+        httpServletRequest = null;
+        httpResponse = null;
+        outputStream.recycle();
+        usingOutputStream = false;
+        writer = null;
+        committed = false;
+        cookies = null;
+        contentType = null;
+        characterEncoding = null;
+        locale = null;
+        EventExecutor eventLoop = this.eventLoop;
+        this.eventLoop = null;
+        if (eventLoop.inEventLoop()) {
+            handle.recycle(this);
+        } else {
+            try {
+                eventLoop.execute(recycleTask);
+            } catch (RejectedExecutionException e) {
+                //事件循环已关闭，对象不再复用
+            }
+        }
+    }
 
     /**
      * 设置基本的请求头
@@ -108,6 +168,62 @@ public class ServletHttpServletResponse implements javax.servlet.http.HttpServle
         return httpResponse;
     }
 
+    /**
+     * @return 未提交时返回netty的响应（不触发提交），已提交返回null
+     */
+    HttpResponse getNettyResponseIfNotCommitted() {
+        return committed ? null : httpResponse;
+    }
+
+    /**
+     * @return HTTP/2响应所在的流ID，HTTP/1.1为0
+     */
+    int getStreamId() {
+        return httpServletRequest.getStreamId();
+    }
+
+    /**
+     * 响应体没有写完就提交（缓冲区满或flush）时还不知道内容长度：
+     * HTTP/1.1用chunked编码，HTTP/1.0写完后关闭连接，HTTP/2由DATA帧自行分隔
+     */
+    void setContentLengthUnknown() {
+        if (getStreamId() > 0) {
+            return;
+        }
+        if (HttpVersion.HTTP_1_0.equals(httpServletRequest.getNettyRequest().protocolVersion())) {
+            HttpHeaderUtil.setKeepAlive(httpResponse, false);
+        } else {
+            HttpHeaderUtil.setTransferEncodingChunked(httpResponse, true);
+        }
+    }
+
+    /**
+     * @return 执行servlet的业务执行器，已归还对象池时返回null（事件循环上的通知可能晚于recycle）
+     */
+    Executor getDispatchExecutor() {
+        ServletHttpServletRequest request = httpServletRequest;
+        return request == null ? null : request.getDispatchExecutor();
+    }
+
+    /**
+     * @return HTTP/1.1连接上所属请求的序号，为0时不排序
+     */
+    int getSequence() {
+        return httpServletRequest.getSequence();
+    }
+
+    /**
+     * @return 响应是否会被pipeline中的压缩处理器压缩，这时响应体不能以FileRegion直接发送
+     */
+    boolean isCompressionExpected() {
+        ServletCompressionConfig compressionConfig = servletContext.getCompressionConfig();
+        if (compressionConfig == null || getStreamId() > 0) { //HTTP/2连接上没有压缩处理器
+            return false;
+        }
+        HttpRequest request = httpServletRequest.getNettyRequest();
+        return compressionConfig.shouldCompress(httpResponse, contentType, request.method(), request.headers().get(HttpHeaderNames.ACCEPT_ENCODING));
+    }
+
     /**
      * @return 线程安全的获取当前时间格式化后的字符串
      */
@@ -319,11 +435,21 @@ public class ServletHttpServletResponse implements javax.servlet.http.HttpServle
         return outputStream;
     }
 
+    /**
+     * 按characterEncoding把字符直接编码到输出流的缓冲区，之后不能再修改字符集
+     */
     @Override
     public PrintWriter getWriter() throws IOException {
         checkState(!usingOutputStream, "getOutputStream has already been called for this response");
         if (!hasWriter()) {
-            writer = new PrintWriter(outputStream);
+            Charset charset;
+            try {
+                charset = characterEncoding == null ? CharsetUtil.ISO_8859_1 : Charset.forName(characterEncoding);
+            } catch (IllegalArgumentException e) {
+                throw new UnsupportedEncodingException(characterEncoding);
+            }
+            servletWriter.init(charset);
+            writer = new PrintWriter(servletWriter);
         }
         return writer;
     }
@@ -336,6 +462,17 @@ public class ServletHttpServletResponse implements javax.servlet.http.HttpServle
         characterEncoding = charset;
     }
 
+    /**
+     * 结束响应，写出缓冲中剩余的内容，可以在任意线程调用
+     * Writer没有自己的缓冲，只需结束编码器的状态，然后关闭输出流
+     */
+    public void finish() throws IOException {
+        if (hasWriter()) {
+            servletWriter.finish();
+        }
+        outputStream.close();
+    }
+
     private boolean hasWriter() {
         return null != writer;
     }
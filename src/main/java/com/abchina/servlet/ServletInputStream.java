@@ -3,39 +3,75 @@ package com.abchina.servlet;
 import com.abchina.util.ObjectUtil;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.FullHttpMessage;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.LastHttpContent;
 
 import javax.servlet.ReadListener;
 import java.io.IOException;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Queue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
  *
  * 输入流
+ * 事件循环（生产者）通过addContent放入HttpContent并唤醒等待的业务线程（消费者），消费者没有数据时挂起而不是自旋。
+ * 设置了ReadListener后为非阻塞模式，onDataAvailable/onAllDataRead都在事件循环上回调
+ *
+ * 流式请求体的背压：队列中未读的字节超过高水位线时关闭channel的autoRead，不再从socket读入，
+ * servlet读到低水位线以下（或关闭输入流）时恢复，请求体在内存中最多保留高水位线左右的数据
+ * 聚合的请求（FullHttpMessage）已经整个在内存中，不需要背压；HTTP/2连接上的请求都是聚合的，不会暂停整个连接
  */
 public class ServletInputStream extends javax.servlet.ServletInputStream {
 
+    //等待数据的最长单次挂起时间（毫秒），期间会复查channel是否还活跃
+    private static final long CONTENT_WAIT_MILLIS = 1000;
+    //队列中未读字节的高低水位线
+    private static final int READ_HIGH_WATER_MARK = 64 * 1024;
+    private static final int READ_LOW_WATER_MARK = 16 * 1024;
+
     private final Channel channel; //netty ChannelHandlerContext的channel
     private AtomicBoolean closed; //输入流是否已经关闭，保证线程安全
-    private final BlockingQueue<HttpContent> queue; //HttpContent的队列，一次请求可能有多次加入
+    private final Queue<HttpContent> queue; //HttpContent的队列，一次请求可能有多次加入，所有读写都持有queue的锁
     private HttpContent current;
     private int currentLength;
-    private ReadListener readListener;
+    private volatile ReadListener readListener;
+    private boolean dataAvailableNotified; //isReady()返回false后是否已回调过onDataAvailable，持有queue的锁访问
+    private final AtomicBoolean allDataReadNotified; //onAllDataRead只回调一次
+    private long queuedBytes; //队列中（不含current）的字节数，持有queue的锁访问
+    private boolean readSuspended; //是否因为队列超过高水位线关闭了autoRead，持有queue的锁访问
 
     public ServletInputStream(Channel channel) {
         this.channel = ObjectUtil.checkNotNull(channel);
         this.closed = new AtomicBoolean();
-        queue = new LinkedBlockingQueue<>();
+        this.queue = new ArrayDeque<>();
+        this.allDataReadNotified = new AtomicBoolean();
     }
 
+    /**
+     * 加入一块请求体并唤醒等待的读线程，流已关闭（如servlet已处理完毕但请求体仍在到达）时直接丢弃
+     * 在事件循环上调用
+     */
     public void addContent(HttpContent httpContent) {
-        checkNotClosed();
-        queue.offer(httpContent.retain());
+        synchronized (queue) {
+            if (closed.get()) {
+                return;
+            }
+            queue.offer(httpContent.retain());
+            queuedBytes += httpContent.content().readableBytes();
+            if (!readSuspended && queuedBytes >= READ_HIGH_WATER_MARK && !(httpContent instanceof FullHttpMessage)) {
+                readSuspended = true;
+                channel.config().setAutoRead(false);
+            }
+            queue.notifyAll();
+        }
+        if (readListener != null) {
+            notifyReadListener();
+        }
     }
 
     public int getCurrentLength() {
@@ -55,30 +91,104 @@ public class ServletInputStream extends javax.servlet.ServletInputStream {
     @Override
     public boolean isFinished() {
         checkNotClosed();
-        return isLastContent() && current.content().readableBytes() == 0;
+        synchronized (queue) {
+            return isFinished0();
+        }
     }
 
-    /**
-     * 已经传入本次请求所有HttpContent
-     */
-    private boolean isLastContent() {
-        return current instanceof LastHttpContent;
+    private boolean isFinished0() {
+        if (current != null && current.content().isReadable()) {
+            return false;
+        }
+        if (current instanceof LastHttpContent) {
+            return true;
+        }
+        for (HttpContent content : queue) {
+            if (content.content().isReadable()) {
+                return false;
+            }
+            if (content instanceof LastHttpContent) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * 已读入至少一次HttpContent且未读取完所有内容，或者HttpContent队列非空
+     * 当前HttpContent或者队列中还有可读的字节
+     * 返回false后有新数据到达时会回调ReadListener.onDataAvailable
      */
     @Override
     public boolean isReady() {
         checkNotClosed();
-        return (current != null && current.content().readableBytes() > 0) || !queue.isEmpty();
+        synchronized (queue) {
+            boolean ready = hasReadableContent0();
+            if (!ready) {
+                dataAvailableNotified = false;
+            }
+            return ready;
+        }
+    }
+
+    private boolean hasReadableContent0() {
+        if (current != null && current.content().isReadable()) {
+            return true;
+        }
+        for (HttpContent content : queue) {
+            if (content.content().isReadable()) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
     public void setReadListener(ReadListener readListener) {
         checkNotClosed();
         ObjectUtil.checkNotNull(readListener);
+        if (this.readListener != null) {
+            throw new IllegalStateException("ReadListener has already been set");
+        }
+        synchronized (queue) {
+            dataAvailableNotified = false;
+        }
         this.readListener = readListener;
+        //已经到达的数据也要通知，统一放到事件循环上回调
+        channel.eventLoop().execute(this::notifyReadListener);
+    }
+
+    /**
+     * 有可读数据且上次isReady()返回过false时回调onDataAvailable，全部读完时回调一次onAllDataRead
+     * 只在事件循环上调用
+     */
+    private void notifyReadListener() {
+        ReadListener listener = readListener;
+        if (listener == null) {
+            return;
+        }
+        boolean dataAvailable = false;
+        boolean allDataRead = false;
+        synchronized (queue) {
+            if (closed.get()) {
+                return;
+            }
+            if (isFinished0()) {
+                allDataRead = allDataReadNotified.compareAndSet(false, true);
+            } else if (!dataAvailableNotified && hasReadableContent0()) {
+                dataAvailableNotified = true;
+                dataAvailable = true;
+            }
+        }
+        try {
+            if (dataAvailable) {
+                listener.onDataAvailable();
+            }
+            if (allDataRead) {
+                listener.onAllDataRead();
+            }
+        } catch (Throwable t) {
+            listener.onError(t);
+        }
     }
 
     /**
@@ -87,10 +197,19 @@ public class ServletInputStream extends javax.servlet.ServletInputStream {
     @Override
     public long skip(long n) throws IOException {
         checkNotClosed();
-        ByteBuf content = current.content();
-        long skipLen = Math.min(content.readableBytes(), n); //实际可以跳过的字节数
-        content.skipBytes((int) skipLen);
-        return skipLen;
+        if (n <= 0) {
+            return 0;
+        }
+        synchronized (queue) {
+            if (!poll()) {
+                return 0;
+            }
+            ByteBuf content = current.content();
+            long skipLen = Math.min(content.readableBytes(), n); //实际可以跳过的字节数
+            content.skipBytes((int) skipLen);
+            afterRead();
+            return skipLen;
+        }
     }
 
     /**
@@ -98,15 +217,34 @@ public class ServletInputStream extends javax.servlet.ServletInputStream {
      */
     @Override
     public int available() throws IOException {
-        return null == current ? 0 : current.content().readableBytes();
+        synchronized (queue) {
+            return null == current ? 0 : current.content().readableBytes();
+        }
     }
 
     @Override
     public void close() throws IOException {
         if (closed.compareAndSet(false, true)) {
-            closeHttpContentQueue();
-            closeCurrentHttpContent();
+            synchronized (queue) {
+                closeHttpContentQueue();
+                closeCurrentHttpContent();
+                //剩余的请求体由解码器读入后丢弃，之后管线化的请求也要继续读入
+                resumeRead();
+                queue.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * channel关闭，由事件循环上的handler调用
+     * 非阻塞模式下请求体还没读完则回调onError，然后关闭输入流并唤醒等待的读线程
+     */
+    public void onChannelInactive() throws IOException {
+        ReadListener listener = readListener;
+        if (listener != null && !closed.get() && !allDataReadNotified.get()) {
+            listener.onError(new ClosedChannelException());
         }
+        close();
     }
 
     /**
@@ -123,18 +261,26 @@ public class ServletInputStream extends javax.servlet.ServletInputStream {
      * 关闭HttpContent队列
      */
     private void closeHttpContentQueue() {
-        while(!queue.isEmpty()){
-            HttpContent content = queue.poll();
-            if(content != null){
-                content.release();
-            }
+        HttpContent content;
+        while ((content = queue.poll()) != null) {
+            content.release();
         }
-        queue.clear();
+        queuedBytes = 0;
     }
 
     /**
-     * 尝试更新current，然后读取len个字节并复制到b中（off下标开始）
-     * @return 实际读取的字节数
+     * 恢复因背压关闭的autoRead，可以在任意线程调用，必须持有queue的锁
+     */
+    private void resumeRead() {
+        if (readSuspended) {
+            readSuspended = false;
+            channel.config().setAutoRead(true);
+        }
+    }
+
+    /**
+     * 尝试更新current，然后读取最多len个字节并复制到b中（off下标开始）
+     * @return 实际读取的字节数，读取完毕返回-1，非阻塞模式下暂无数据返回0
      */
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
@@ -142,14 +288,35 @@ public class ServletInputStream extends javax.servlet.ServletInputStream {
         if (0 == len) {
             return 0;
         }
-        poll();
-        if (isFinished()) {
-            return -1;
+        checkNotClosed();
+        synchronized (queue) {
+            if (!poll()) {
+                return isFinished0() ? -1 : 0;
+            }
+            ByteBuf content = current.content();
+            int readableBytes = Math.min(len, content.readableBytes());
+            content.readBytes(b, off, readableBytes);//复制到b
+            afterRead();
+            return readableBytes;
+        }
+    }
+
+    /**
+     * 取出下一块请求体，交给按块解码的调用方（表单解码器），与read()一样在没有数据时阻塞等待
+     * @return 当前块剩余的可读内容，调用方负责释放；请求体已读完时返回null
+     * @throws IOException channel非激活状态或流已被关闭
+     */
+    HttpContent readContent() throws IOException {
+        checkNotClosed();
+        synchronized (queue) {
+            if (!poll()) {
+                return null;
+            }
+            ByteBuf content = current.content();
+            HttpContent chunk = new DefaultHttpContent(content.readSlice(content.readableBytes()).retain());
+            afterRead();
+            return chunk;
         }
-        ByteBuf byteBuf = readContent(len);//读取len个字节
-        int readableBytes = byteBuf.readableBytes();
-        byteBuf.readBytes(b, off, readableBytes);//复制到b
-        return readableBytes - byteBuf.readableBytes();//返回实际读取的字节数
     }
 
     /**
@@ -157,50 +324,70 @@ public class ServletInputStream extends javax.servlet.ServletInputStream {
      */
     @Override
     public int read() throws IOException {
-        poll();
-        if (isFinished()) {
-            return -1;
+        checkNotClosed();
+        synchronized (queue) {
+            if (!poll()) {
+                if (isFinished0()) {
+                    return -1;
+                }
+                throw new IllegalStateException("No content available, check isReady() before reading");
+            }
+            int b = current.content().readByte() & 0xFF;
+            afterRead();
+            return b;
         }
-        return readContent(1).getByte(0);
     }
 
     /**
-     * 从current的HttpContent中读取length个字节
+     * 非阻塞模式下读完最后的数据，需要回调onAllDataRead
      */
-    private ByteBuf readContent(int length) {
-        ByteBuf content = current.content();
-        if (length < content.readableBytes()) {
-            return content.readSlice(length);
-        } else {
-            return content;
+    private void afterRead() {
+        if (readListener != null && isFinished0() && !allDataReadNotified.get()) {
+            channel.eventLoop().execute(this::notifyReadListener);
         }
     }
 
     /**
-     * 如果没有可读字节了，从HttpContent队列中获取一个到current中
-     * 如果readListener非空，则非阻塞，读不到数据也直接返回
-     * @throws IOException channel非激活状态
+     * 保证current中有可读字节：current读完后从队列中取下一个（释放读完的那个）
+     * 阻塞模式下队列为空则挂起等待addContent唤醒；非阻塞模式（readListener非空）下直接返回
+     * 必须持有queue的锁调用
+     * @return true=current中有可读字节 false=请求体已读完，或非阻塞模式下暂无数据
+     * @throws IOException channel非激活状态或流已被关闭
      */
-    private void poll() throws IOException {
-        checkNotClosed();
-        if (null == current || current.content().readableBytes() == 0) {
-            boolean blocking = null == readListener;
-            while (!isLastContent()) { //current为空，或者current不是当前请求最后一个HttpContent
-                try {
-                    current = queue.poll(1000, TimeUnit.NANOSECONDS);
-                } catch (InterruptedException ignored) {
-                }
-                if(current != null){
-                    this.currentLength = current.content().readableBytes();
-                }
-                if (current != null || !blocking) { //队列中读取到数据，或者readListener非空（非阻塞），则退出
-                    break;
-                }
-                if (!channel.isActive()) {
-                    throw new IOException("Channel is not active");
+    private boolean poll() throws IOException {
+        boolean blocking = null == readListener;
+        while (null == current || !current.content().isReadable()) {
+            if (current instanceof LastHttpContent) { //当前请求最后一个HttpContent已经读完
+                return false;
+            }
+            HttpContent next = queue.poll();
+            if (next != null) {
+                closeCurrentHttpContent();
+                current = next;
+                currentLength = current.content().readableBytes();
+                queuedBytes -= currentLength;
+                if (queuedBytes <= READ_LOW_WATER_MARK) {
+                    resumeRead();
                 }
+                continue;
+            }
+            if (!blocking) {
+                return false;
+            }
+            if (closed.get()) {
+                throw new IOException("Stream is closed");
+            }
+            if (!channel.isActive()) {
+                throw new IOException("Channel is not active");
+            }
+            try {
+                queue.wait(CONTENT_WAIT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for request content", e);
             }
         }
+        return true;
     }
 
     private void checkNotClosed() {
@@ -1,90 +1,516 @@
 package com.abchina.servlet;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.http.DefaultHttpContent;
 import io.netty.handler.codec.http.DefaultLastHttpContent;
 import io.netty.handler.codec.http.HttpHeaderUtil;
 import io.netty.handler.codec.http.HttpResponse;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
 
 import javax.servlet.WriteListener;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
  * 输出流
+ * 内容直接写入从channel的分配器取得的池化ByteBuf（可用时为直接内存），没有中间的byte[]，写出时也不再复制；
+ * 缓冲区之外直接写入的内容（大块数组、ByteBuf、ByteBuffer）与缓冲区中的内容组合为CompositeByteBuf一起写出
+ * 跟随channel的高低水位线做背压：阻塞写在channel不可写时挂起，直到缓冲区排空；
+ * 设置了WriteListener的非阻塞写通过isReady()判断，channel恢复可写时在业务执行器上回调onWritePossible
+ * 同一channel上可能有多个响应同时在写（HTTP/2的多个流、管线化或异步的响应），可写性变化通知其中每一个
+ * 本响应已写出但还没有写完的内容也在这里计数：内容可能在channel出站缓冲之外排队（见ResponseWritability），
+ * 这时超过高水位线即不可写，写完到低水位线以下时唤醒；计数在写出前就已加上，不会因为写操作还没到达事件循环而超写
  */
 public class ServletOutputStream extends javax.servlet.ServletOutputStream {
 
+    /**
+     * channel上还没有关闭的输出流，供事件循环上的handler转发可写性变化
+     */
+    private static final AttributeKey<Set<ServletOutputStream>> CHANNEL_ATTR_KEY = AttributeKey.valueOf(ServletOutputStream.class, "outputStreams");
+
     private static final int DEFAULT_BUFFER_SIZE = 1024 * 8;
+    //缓冲区至少能放下几个多字节字符，字符编码时每次至少能前进一个字符
+    private static final int MIN_BUFFER_SIZE = 64;
+    //等待channel可写的最长单次挂起时间（毫秒），防止错过通知
+    private static final long WRITABILITY_WAIT_MILLIS = 1000;
+    //本响应已写出但还没有写完的内容的高低水位线
+    private static final int PENDING_HIGH_WATER_MARK = 64 * 1024;
+    private static final int PENDING_LOW_WATER_MARK = 32 * 1024;
 
-    private final ChannelHandlerContext ctx;
+    //recycle()后为null，事件循环上的通知要先读到局部变量再检查
+    private volatile ChannelHandlerContext ctx;
     private final ServletHttpServletResponse servletResponse;
-    private WriteListener writeListener; //监听器，暂时没处理
+    private volatile WriteListener writeListener; //非阻塞写监听器
+    private volatile boolean writePossibleNotified; //isReady()返回false后是否已回调过onWritePossible
+    //已写出但还没有写完的字节数，每个响应一个新的计数器，回收之后才完成的写操作不会计到下一个响应上
+    private volatile AtomicLong pendingBytes = new AtomicLong();
 
-    private byte[] buf; //缓冲区
-    private int count; //缓冲区游标（记录写到哪里）
+    private ByteBuf buffer; //缓冲区，第一次写入时从池中分配，写出后归Netty释放
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
     private int totalLength;//内容总长度
-    private boolean closed; //是否已经调用close()方法关闭输出流
+    private volatile boolean closed; //是否已经调用close()方法关闭输出流
 
     private final Object buffLock = new Object();
+    private final Object writabilityLock = new Object();
 
-    ServletOutputStream(ChannelHandlerContext ctx, ServletHttpServletResponse servletResponse) {
-        this.ctx = ctx;
+    /**
+     * 与响应对象一起复用，每次使用前调用init(ctx)
+     */
+    ServletOutputStream(ServletHttpServletResponse servletResponse) {
         this.servletResponse = servletResponse;
-        this.buf = new byte[DEFAULT_BUFFER_SIZE];
     }
 
+    /**
+     * 开始一个新的响应
+     */
+    void init(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+        this.bufferSize = DEFAULT_BUFFER_SIZE;
+        this.pendingBytes = new AtomicLong();
+        activeStreams(ctx.channel()).add(this);
+    }
+
+    private static Set<ServletOutputStream> activeStreams(Channel channel) {
+        Attribute<Set<ServletOutputStream>> attr = channel.attr(CHANNEL_ATTR_KEY);
+        Set<ServletOutputStream> streams = attr.get();
+        if (streams == null) {
+            Set<ServletOutputStream> newStreams = Collections.newSetFromMap(new ConcurrentHashMap<>());
+            streams = attr.setIfAbsent(newStreams);
+            if (streams == null) {
+                streams = newStreams;
+            }
+        }
+        return streams;
+    }
+
+    /**
+     * channel可写性变化，由事件循环上的handler调用，通知channel上所有还没有关闭的输出流
+     */
+    public static void notifyWritabilityChanged(Channel channel) {
+        Set<ServletOutputStream> streams = channel.attr(CHANNEL_ATTR_KEY).get();
+        if (streams != null) {
+            for (ServletOutputStream stream : streams) {
+                stream.onWritabilityChanged(channel);
+            }
+        }
+    }
+
+    /**
+     * channel关闭，由事件循环上的handler调用，通知channel上所有还没有关闭的输出流
+     */
+    public static void notifyChannelInactive(Channel channel) {
+        Set<ServletOutputStream> streams = channel.attr(CHANNEL_ATTR_KEY).get();
+        if (streams != null) {
+            for (ServletOutputStream stream : streams) {
+                stream.onChannelInactive(channel);
+            }
+        }
+    }
+
+    /**
+     * 响应对象归还对象池时调用
+     */
+    void recycle() {
+        releaseBuffer();
+        //先从channel上移除，之后的通知不会再找到这个输出流
+        ChannelHandlerContext ctx = this.ctx;
+        if (ctx != null) {
+            activeStreams(ctx.channel()).remove(this);
+        }
+        this.ctx = null;
+        writeListener = null;
+        writePossibleNotified = false;
+        totalLength = 0;
+        closed = false;
+    }
+
+    /**
+     * channel可写时才可以继续写，返回false后channel恢复可写时会回调WriteListener.onWritePossible
+     */
     @Override
     public boolean isReady() {
-        return true; // TODO implement
+        ChannelHandlerContext ctx = this.ctx;
+        if (closed || ctx == null) {
+            return false;
+        }
+        Channel channel = ctx.channel();
+        if (isWritable(channel)) {
+            return true;
+        }
+        writePossibleNotified = false;
+        //已写出但还没有flush的内容也计入水位线，不flush的话channel不会恢复可写
+        ctx.flush();
+        //返回false与可写事件之间可能有竞争，再确认一次
+        if (isWritable(channel)) {
+            onWritabilityChanged(channel);
+        }
+        return false;
     }
 
     @Override
     public void setWriteListener(WriteListener writeListener) {
         checkNotNull(writeListener);
-        if(this.writeListener != null){
-            return; //只能设置一次
-        }
-        this.writeListener = writeListener;
-        // TODO ISE when called more than once
+        checkState(this.writeListener == null, "WriteListener has already been set"); //只能设置一次
         // TODO ISE when associated request is not async
+        this.writeListener = writeListener;
+        //可写时立即回调一次onWritePossible
+        writePossibleNotified = false;
+        Channel channel = ctx.channel();
+        if (isWritable(channel)) {
+            onWritabilityChanged(channel);
+        }
+    }
+
+    /**
+     * channel可写性变化
+     * 唤醒挂起的阻塞写，非阻塞写则在业务执行器上回调onWritePossible
+     * @param channel 发生变化的channel，输出流已经回收或已用于其他连接时忽略
+     */
+    private void onWritabilityChanged(Channel channel) {
+        if (!isBoundTo(channel)) {
+            return;
+        }
+        synchronized (writabilityLock) {
+            writabilityLock.notifyAll();
+        }
+        WriteListener listener = writeListener;
+        if (listener == null || closed || !isWritable(channel) || writePossibleNotified) {
+            return;
+        }
+        Executor executor = servletResponse.getDispatchExecutor();
+        if (executor == null) {
+            return;
+        }
+        writePossibleNotified = true;
+        executor.execute(() -> {
+            try {
+                listener.onWritePossible();
+            } catch (Throwable t) {
+                listener.onError(t);
+            }
+        });
     }
 
+    /**
+     * channel关闭
+     * 唤醒挂起的阻塞写，非阻塞写则在业务执行器上回调onError
+     * @param channel 关闭的channel，输出流已经回收或已用于其他连接时忽略
+     */
+    private void onChannelInactive(Channel channel) {
+        if (!isBoundTo(channel)) {
+            return;
+        }
+        synchronized (writabilityLock) {
+            writabilityLock.notifyAll();
+        }
+        WriteListener listener = writeListener;
+        Executor executor = servletResponse.getDispatchExecutor();
+        if (listener != null && !closed && executor != null) {
+            executor.execute(() -> listener.onError(new ClosedChannelException()));
+        }
+    }
+
+    /**
+     * @return channel的出站缓冲没有超过高水位线，并且本响应没有超过高水位线的内容排在channel之外（见ResponseWritability）
+     */
+    private boolean isWritable(Channel channel) {
+        if (!channel.isWritable()) {
+            return false;
+        }
+        if (pendingBytes.get() < PENDING_HIGH_WATER_MARK) {
+            return true;
+        }
+        ResponseWritability writability = channel.attr(ResponseWritability.ATTR_KEY).get();
+        if (writability == null) {
+            return true;
+        }
+        int streamId = servletResponse.getStreamId();
+        return !writability.isQueued(streamId > 0 ? streamId : servletResponse.getSequence());
+    }
+
+    /**
+     * 写出内容并计入本响应还没有写完的字节数，写完（或失败）时减去，降到低水位线以下时唤醒等待的写
+     * 失败时与voidPromise一样触发exceptionCaught；HTTP/2单个流的失败由NettyHttp2ConnectionHandler处理，不触发
+     * @param bytes 内容的字节数
+     */
+    private ChannelFuture writeCounted(Object msg, long bytes) {
+        AtomicLong pending = this.pendingBytes;
+        boolean fireFailure = servletResponse.getStreamId() == 0;
+        pending.addAndGet(bytes);
+        ChannelPromise promise = ctx.newPromise();
+        promise.addListener((ChannelFutureListener) future -> {
+            long remaining = pending.addAndGet(-bytes);
+            if (remaining < PENDING_LOW_WATER_MARK && remaining + bytes >= PENDING_LOW_WATER_MARK && pending == pendingBytes) {
+                onWritabilityChanged(future.channel());
+            }
+            if (!future.isSuccess() && fireFailure) {
+                future.channel().pipeline().fireExceptionCaught(future.cause());
+            }
+        });
+        return ctx.write(msg, promise);
+    }
+
+    /**
+     * @return 输出流当前是否属于该channel
+     */
+    private boolean isBoundTo(Channel channel) {
+        ChannelHandlerContext ctx = this.ctx;
+        return ctx != null && ctx.channel() == channel;
+    }
+
+    /**
+     * 不小于缓冲区的数据不经过缓冲区，单独复制到一个ByteBuf，与缓冲区中已有的内容一起写出
+     */
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
         synchronized (buffLock) {
             totalLength += len;
-            if (len > count) {
-                flushBuffer();
-                ByteBuf content = ctx.alloc().buffer(len);
+            if (len >= bufferSize) {
+                ByteBuf content = ctx.alloc().ioBuffer(len);
                 content.writeBytes(b, off, len);
-                writeContent(content, false);
+                writeContent(withBuffered(content), false);
                 return;
             }
-            writeBufferIfNeeded(len);
-            System.arraycopy(b, off, buf, count, len); //输入的b复制到缓存buf
-            count += len;
+            ensureWritable(len).writeBytes(b, off, len);
         }
     }
 
     @Override
     public void write(int b) throws IOException {
         synchronized (buffLock) {
-            writeBufferIfNeeded(1);
-            buf[count++] = (byte) b;
+            ensureWritable(1).writeByte(b);
             totalLength++;
         }
     }
 
-    private void writeBufferIfNeeded(int len) throws IOException {
-        if (len > buf.length - count) { //buffer剩余空间不足则flush
+    /**
+     * 直接发送调用方的ByteBuffer，不复制；写出完成前调用方不能再修改其中的内容
+     * @param content 内容，从position到limit的部分
+     * @throws IOException 等待channel可写时channel已关闭
+     */
+    public void write(ByteBuffer content) throws IOException {
+        write(Unpooled.wrappedBuffer(content));
+    }
+
+    /**
+     * 零拷贝发送文件（sendfile），文件内容不经过堆内存
+     * 未设置Content-Length时按已写入的长度加文件长度设置，所以文件之后不应再写入其他内容
+     * @param file 文件
+     * @param position 起始位置
+     * @param length 长度
+     * @throws IOException 等待channel可写时channel已关闭
+     */
+    public void writeFile(File file, long position, long length) throws IOException {
+        synchronized (buffLock) {
+            checkState(!closed, "Stream is closed");
+            if (servletResponse.getStreamId() > 0
+                    || (!servletResponse.isCommitted() && servletResponse.isCompressionExpected())) {
+                //FileRegion不经过压缩处理器，也不能拆成HTTP/2的DATA帧，这时按普通内容写入
+                writeFileContent(file, position, length);
+                return;
+            }
+            commitBeforeDirectWrite(length);
+            if (length > 0) {
+                awaitWritable();
+                writeCounted(wrap(new DefaultFileRegion(file, position, length)), length);
+            }
+        }
+    }
+
+    private void writeFileContent(File file, long position, long length) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            fileChannel.position(position);
+            long end = position + length;
+            while (position < end) {
+                int chunkSize = (int) Math.min(bufferSize, end - position);
+                ByteBuf content = ctx.alloc().buffer(chunkSize);
+                try {
+                    int read = content.writeBytes(fileChannel, chunkSize);
+                    if (read <= 0) {
+                        throw new EOFException("Unexpected end of file " + file);
+                    }
+                    position += read;
+                    totalLength += read;
+                } catch (IOException e) {
+                    content.release();
+                    throw e;
+                }
+                writeContent(content, false);
+            }
+        }
+    }
+
+    /**
+     * 直接发送已在内存中的内容（如缓存的静态资源），不经过缓冲区复制，与缓冲区中已有的内容一起写出
+     * Content-Length的处理同writeFile，content的引用由本方法负责释放
+     * @param content 内容
+     * @throws IOException 等待channel可写时channel已关闭
+     */
+    public void write(ByteBuf content) throws IOException {
+        synchronized (buffLock) {
+            if (closed) {
+                content.release();
+                throw new IllegalStateException("Stream is closed");
+            }
+            int length = content.readableBytes();
+            totalLength += length;
+            HttpResponse response = servletResponse.getNettyResponseIfNotCommitted();
+            if (response != null && !HttpHeaderUtil.isContentLengthSet(response)) {
+                HttpHeaderUtil.setContentLength(response, totalLength);
+            }
+            writeContent(withBuffered(content), false);
+        }
+    }
+
+    /**
+     * UTF-8编码直接写入缓冲区，由ServletWriter调用
+     * ByteBufUtil.writeUtf8按每个字符3字节预留空间，不处理代理对，代理对在这里单独编码为4字节，不成对的代理字符替换为'?'
+     * @param chars 从position到limit的字符，调用后position移到limit
+     */
+    void writeUtf8(CharBuffer chars) throws IOException {
+        synchronized (buffLock) {
+            writeUtf8Locked(chars);
+        }
+    }
+
+    private void writeUtf8Locked(CharBuffer chars) throws IOException {
+        while (chars.hasRemaining()) {
+            ByteBuf buf = ensureWritable(6);
+            int n = Math.min(chars.remaining(), buf.writableBytes() / 3);
+            int run = 0;
+            while (run < n && !Character.isSurrogate(chars.get(chars.position() + run))) {
+                run++;
+            }
+            if (run > 0) {
+                totalLength += ByteBufUtil.writeUtf8(buf, chars.subSequence(0, run));
+                chars.position(chars.position() + run);
+                continue;
+            }
+            char high = chars.get();
+            if (Character.isHighSurrogate(high) && chars.hasRemaining() && Character.isLowSurrogate(chars.get(chars.position()))) {
+                int codePoint = Character.toCodePoint(high, chars.get());
+                buf.writeByte(0xf0 | (codePoint >> 18));
+                buf.writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+                buf.writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+                buf.writeByte(0x80 | (codePoint & 0x3f));
+                totalLength += 4;
+            } else {
+                buf.writeByte('?'); //不成对的代理字符
+                totalLength++;
+            }
+        }
+    }
+
+    /**
+     * 每个字符直接写为一个字节，调用方保证字符都在字符集（ISO-8859-1、US-ASCII）范围内
+     * 不用ByteBufUtil.writeAscii：缓冲区被包装（如泄漏检测）时它按US-ASCII编码，0x80以上的字符会变成'?'
+     */
+    void writeSingleByte(CharBuffer chars) throws IOException {
+        synchronized (buffLock) {
+            while (chars.hasRemaining()) {
+                ByteBuf buf = ensureWritable(1);
+                int n = Math.min(chars.remaining(), buf.writableBytes());
+                for (int i = 0; i < n; i++) {
+                    buf.writeByte(chars.get());
+                }
+                totalLength += n;
+            }
+        }
+    }
+
+    /**
+     * 用调用方的编码器把字符直接编码到缓冲区，编码器的状态（如UTF-16的BOM）跨多次调用保持
+     * @param endOfInput 是否为最后的字符，有状态的编码器（如ISO-2022-JP）在最后写出复位序列
+     */
+    void encode(CharBuffer chars, CharsetEncoder encoder, boolean endOfInput) throws IOException {
+        synchronized (buffLock) {
+            int maxBytes = (int) Math.ceil(encoder.maxBytesPerChar()) * 2;
+            boolean flushing = false;
+            while (true) {
+                ByteBuf buf = ensureWritable(maxBytes);
+                ByteBuffer out = buf.internalNioBuffer(buf.writerIndex(), buf.writableBytes());
+                int start = out.position();
+                CoderResult result = flushing ? encoder.flush(out) : encoder.encode(chars, out, endOfInput);
+                int written = out.position() - start;
+                buf.writerIndex(buf.writerIndex() + written);
+                totalLength += written;
+                if (result.isOverflow()) {
+                    flushBuffer();
+                } else if (result.isUnderflow()) {
+                    if (flushing || !endOfInput) {
+                        return;
+                    }
+                    flushing = true;
+                } else {
+                    result.throwException();
+                }
+            }
+        }
+    }
+
+    /**
+     * 缓冲区中有内容时与content组合为CompositeByteBuf（不复制），缓冲区交给组合的ByteBuf
+     */
+    private ByteBuf withBuffered(ByteBuf content) {
+        if (buffer == null || !buffer.isReadable()) {
+            return content;
+        }
+        ByteBuf buffered = buffer;
+        buffer = null;
+        return Unpooled.wrappedBuffer(buffered, content);
+    }
+
+    /**
+     * 直接写入前，先设置Content-Length、flush已缓存的内容并提交响应头
+     */
+    private void commitBeforeDirectWrite(long length) throws IOException {
+        totalLength += length;
+        HttpResponse response = servletResponse.getNettyResponseIfNotCommitted();
+        if (response != null && !HttpHeaderUtil.isContentLengthSet(response)) {
+            HttpHeaderUtil.setContentLength(response, totalLength);
+        }
+        flushBuffer();
+        if (!servletResponse.isCommitted()) {
+            writeContent(Unpooled.EMPTY_BUFFER, false);
+        }
+    }
+
+    /**
+     * 缓冲区剩余空间不足时先写出，没有缓冲区时从池中分配
+     */
+    private ByteBuf ensureWritable(int len) throws IOException {
+        if (buffer != null && buffer.writableBytes() < len) {
             flushBuffer();
         }
+        if (buffer == null) {
+            buffer = ctx.alloc().ioBuffer(bufferSize, bufferSize);
+        }
+        return buffer;
     }
 
     @Override
@@ -92,16 +518,15 @@ public class ServletOutputStream extends javax.servlet.ServletOutputStream {
         flushBuffer();
     }
 
-    private void flushBuffer() {
+    private void flushBuffer() throws IOException {
         flushBuffer(false);
     }
 
-    private void flushBuffer(boolean lastContent) {
+    private void flushBuffer(boolean lastContent) throws IOException {
         synchronized (buffLock) {
-            if (count > 0) {
-                ByteBuf content = ctx.alloc().buffer(count);
-                content.writeBytes(buf, 0, count);//buf写入ByteBuf
-                count = 0;//游标归位
+            if (buffer != null && buffer.isReadable()) {
+                ByteBuf content = buffer; //缓冲区本身交给channel，不再复制
+                buffer = null;
                 writeContent(content, lastContent);
             } else if (lastContent) { //如果是最后一次flush，即便内容为空也要执行ctx.write写入EMPTY_LAST_CONTENT
                 writeContent(Unpooled.EMPTY_BUFFER, true);
@@ -109,32 +534,88 @@ public class ServletOutputStream extends javax.servlet.ServletOutputStream {
         }
     }
 
-    private void writeContent(ByteBuf content, boolean lastContent) {
-        // TODO block if channel is not writable to avoid heap utilisation
+    /**
+     * @param content 写出的内容，引用交给channel
+     * @param lastContent 是否为最后的内容，最后的内容与LastHttpContent合为一个消息
+     */
+    private void writeContent(ByteBuf content, boolean lastContent) throws IOException {
+        try {
+            awaitWritable();
+        } catch (IOException e) {
+            content.release();
+            throw e;
+        }
         if (!servletResponse.isCommitted()) {
             writeResponse(lastContent);
         }
-        if (content.readableBytes() > 0) {
-            assert content.refCnt() == 1;
-            ctx.write(content, ctx.voidPromise());
-        }
         if (lastContent) {
             HttpResponse nettyResponse = servletResponse.getNettyResponse();
-            ChannelFuture future = ctx.write(DefaultLastHttpContent.EMPTY_LAST_CONTENT);
+            int length = content.readableBytes();
+            Object last = length > 0 ? new DefaultLastHttpContent(content) : DefaultLastHttpContent.EMPTY_LAST_CONTENT;
+            if (length == 0) {
+                content.release();
+            }
+            ChannelFuture future = writeCounted(wrap(last), length);
             if (!HttpHeaderUtil.isKeepAlive(nettyResponse)) {
                 future.addListener(ChannelFutureListener.CLOSE);//如果不是keep-alive，写完后关闭channel
             }
+        } else if (content.isReadable()) {
+            writeCounted(wrap(new DefaultHttpContent(content)), content.readableBytes()); //HttpContent才会经过压缩处理器
+        } else {
+            content.release();
+        }
+    }
+
+    /**
+     * 阻塞写时，channel超过高水位线（或本响应在channel之外排队的内容超过高水位线）则先flush，再挂起当前线程直到恢复可写
+     * 非阻塞写（设置了WriteListener）由isReady()控制，事件循环线程上也不能挂起
+     * @throws IOException 等待期间channel已关闭
+     */
+    private void awaitWritable() throws IOException {
+        Channel channel = ctx.channel();
+        if (isWritable(channel) || writeListener != null || channel.eventLoop().inEventLoop()) {
+            return;
+        }
+        ctx.flush();
+        synchronized (writabilityLock) {
+            while (!isWritable(channel) && channel.isActive()) {
+                try {
+                    writabilityLock.wait(WRITABILITY_WAIT_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for channel to become writable", e);
+                }
+            }
+        }
+        if (!channel.isActive()) {
+            throw new ClosedChannelException();
         }
     }
 
     private void writeResponse(boolean lastContent) {
         HttpResponse response = servletResponse.getNettyResponse();
         // TODO implement exceptions required by http://tools.ietf.org/html/rfc2616#section-4.4
-        // 设置content-length头
+        // 设置content-length头，不是最后的内容时总长度还不确定
         if (!HttpHeaderUtil.isContentLengthSet(response)) {
-            HttpHeaderUtil.setContentLength(response, totalLength);
+            if (lastContent) {
+                HttpHeaderUtil.setContentLength(response, totalLength);
+            } else {
+                servletResponse.setContentLengthUnknown();
+            }
+        }
+        ctx.write(wrap(response), ctx.voidPromise());
+    }
+
+    /**
+     * HTTP/2连接上多个流的响应交错写出，需要带上流ID；HTTP/1.1管线化的响应按请求顺序写出，需要带上请求序号
+     */
+    private Object wrap(Object msg) {
+        int streamId = servletResponse.getStreamId();
+        if (streamId > 0) {
+            return new Http2StreamMessage(streamId, msg);
         }
-        ctx.write(response, ctx.voidPromise());
+        int sequence = servletResponse.getSequence();
+        return sequence > 0 ? new HttpPipelinedMessage(sequence, msg) : msg;
     }
 
     @Override
@@ -146,23 +627,40 @@ public class ServletOutputStream extends javax.servlet.ServletOutputStream {
             flushBuffer(true);
             ctx.flush();
         } finally {
-            buf = null;
+            releaseBuffer();
+            closed = true;
+            activeStreams(ctx.channel()).remove(this);
         }
-        closed = true;
     }
 
     void resetBuffer() {
         assert !servletResponse.isCommitted();
-        count = 0;
+        synchronized (buffLock) {
+            if (buffer != null) {
+                buffer.clear();
+            }
+        }
     }
 
     int getBufferSize() {
-        return buf.length;
+        return bufferSize;
     }
 
     void setBufferSize(int size) {
         assert !servletResponse.isCommitted();
-        checkState(count == 0, "Response body content has been written");
-        buf = new byte[size];
+        synchronized (buffLock) {
+            checkState(buffer == null || !buffer.isReadable(), "Response body content has been written");
+            releaseBuffer();
+            bufferSize = Math.max(size, MIN_BUFFER_SIZE);
+        }
+    }
+
+    private void releaseBuffer() {
+        synchronized (buffLock) {
+            if (buffer != null) {
+                buffer.release();
+                buffer = null;
+            }
+        }
     }
 }
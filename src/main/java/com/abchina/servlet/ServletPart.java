@@ -0,0 +1,107 @@
+package com.abchina.servlet;
+
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.multipart.FileUpload;
+import io.netty.handler.codec.http.multipart.HttpData;
+
+import javax.servlet.http.Part;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * multipart/form-data请求体中的一个部分，内容由Netty的表单解码器保存
+ * 小于阈值的部分在内存中，超过阈值的写入临时文件；请求结束时由请求对象统一删除
+ */
+public class ServletPart implements Part {
+
+    private static final String CONTENT_DISPOSITION = HttpHeaderNames.CONTENT_DISPOSITION.toString();
+    private static final String CONTENT_TYPE = HttpHeaderNames.CONTENT_TYPE.toString();
+
+    private final HttpData data;
+
+    ServletPart(HttpData data) {
+        this.data = data;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (data.isInMemory()) {
+            return new ByteBufInputStream(data.getByteBuf().duplicate());
+        }
+        return new FileInputStream(data.getFile());
+    }
+
+    @Override
+    public String getContentType() {
+        return data instanceof FileUpload ? ((FileUpload) data).getContentType() : null;
+    }
+
+    @Override
+    public String getName() {
+        return data.getName();
+    }
+
+    @Override
+    public String getSubmittedFileName() {
+        return data instanceof FileUpload ? ((FileUpload) data).getFilename() : null;
+    }
+
+    @Override
+    public long getSize() {
+        return data.length();
+    }
+
+    /**
+     * 临时文件直接移动到目标位置，内存中的内容写入目标文件
+     */
+    @Override
+    public void write(String fileName) throws IOException {
+        if (!data.renameTo(new File(fileName))) {
+            throw new IOException("Failed to write part " + getName() + " to " + fileName);
+        }
+    }
+
+    @Override
+    public void delete() throws IOException {
+        data.delete();
+    }
+
+    /**
+     * 解码器不保留每个部分的原始头，按解析出的字段还原Content-Disposition与Content-Type
+     */
+    @Override
+    public String getHeader(String name) {
+        if (CONTENT_DISPOSITION.equalsIgnoreCase(name)) {
+            String fileName = getSubmittedFileName();
+            return fileName == null ?
+                    "form-data; name=\"" + getName() + "\"" :
+                    "form-data; name=\"" + getName() + "\"; filename=\"" + fileName + "\"";
+        }
+        if (CONTENT_TYPE.equalsIgnoreCase(name)) {
+            return getContentType();
+        }
+        return null;
+    }
+
+    @Override
+    public Collection<String> getHeaders(String name) {
+        String value = getHeader(name);
+        return value == null ? Collections.emptyList() : Collections.singletonList(value);
+    }
+
+    @Override
+    public Collection<String> getHeaderNames() {
+        Collection<String> names = new ArrayList<>(2);
+        names.add(CONTENT_DISPOSITION);
+        if (getContentType() != null) {
+            names.add(CONTENT_TYPE);
+        }
+        return names;
+    }
+}
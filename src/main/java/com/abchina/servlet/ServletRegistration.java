@@ -9,6 +9,11 @@ import java.util.*;
  */
 public class ServletRegistration implements javax.servlet.ServletRegistration, javax.servlet.ServletRegistration.Dynamic {
 
+    /**
+     * 值为true时等同于setNonBlocking(true)，可以在web.xml或ServletRegistrationBean的初始化参数中设置
+     */
+    public static final String NON_BLOCKING_INIT_PARAM = "netty.nonBlocking";
+
     private String servletName;
     private Servlet servlet;
     private ServletConfig servletConfig;
@@ -17,6 +22,7 @@ public class ServletRegistration implements javax.servlet.ServletRegistration, j
     private ServletRegistration self;
     private Set<String> mappingSet;
     private boolean asyncSupported;
+    private boolean nonBlocking;
 
     public ServletRegistration(String servletName, Servlet servlet,ServletContext servletContext) {
         this.servletName = servletName;
@@ -62,6 +68,23 @@ public class ServletRegistration implements javax.servlet.ServletRegistration, j
         return asyncSupported;
     }
 
+    /**
+     * @return 是否直接在channel的事件循环上执行，不切换到业务线程
+     */
+    public boolean isNonBlocking() {
+        return nonBlocking || Boolean.parseBoolean(initParameterMap.get(NON_BLOCKING_INIT_PARAM));
+    }
+
+    /**
+     * 标记servlet不会阻塞：不做阻塞IO、不等待锁和远程调用（如健康检查、内存中的查询）
+     * 请求体已完整读入时（聚合模式或HTTP/2）直接在事件循环上执行，省去两次线程切换；
+     * 流式请求体模式下的HTTP/1.1请求仍然交给业务线程，避免在事件循环上等待请求体
+     * @param nonBlocking 是否不会阻塞
+     */
+    public void setNonBlocking(boolean nonBlocking) {
+        this.nonBlocking = nonBlocking;
+    }
+
     @Override
     public Set<String> addMapping(String... urlPatterns) {
         mappingSet.addAll(Arrays.asList(urlPatterns));
@@ -75,6 +98,18 @@ public class ServletRegistration implements javax.servlet.ServletRegistration, j
         return mappingSet;
     }
 
+    /**
+     * 删除映射（servlet规范没有对应的方法）
+     * @param urlPatterns url匹配规则
+     */
+    public void removeMapping(String... urlPatterns) {
+        for(String pattern : urlPatterns) {
+            if (mappingSet.remove(pattern)) {
+                servletContext.removeServletMapping(pattern);
+            }
+        }
+    }
+
     @Override
     public Collection<String> getMappings() {
         return mappingSet;
@@ -97,7 +132,11 @@ public class ServletRegistration implements javax.servlet.ServletRegistration, j
 
     @Override
     public boolean setInitParameter(String name, String value) {
-        return false;
+        if (initParameterMap.containsKey(name)) {
+            return false;
+        }
+        initParameterMap.put(name, value);
+        return true;
     }
 
     @Override
@@ -1,20 +1,36 @@
 package com.abchina.servlet;
 
 import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
 
 /**
  *
  * 请求转发器
+ * 按路径获取的转发器在ServletContext中按路径缓存，同一路径的请求共用，创建后不再改变（过滤器链的缓存除外）
  */
 public class ServletRequestDispatcher implements RequestDispatcher {
 
     private ServletContext context;
-    private FilterChain filterChain;
+    private String servletName;
+    private Servlet servlet;
+    private String path; //按路径获取时的目标路径（不含查询字符串），按名称获取时为null，过滤器按请求本身的URI匹配
+    private String servletPath;
+    private String pathInfo;
+    //按路径获取时，每种派发类型的过滤器链只计算一次
+    private final Filter[][] filtersByType = new Filter[DispatcherType.values().length][];
 
-    ServletRequestDispatcher(ServletContext context, FilterChain filterChain) {
+    ServletRequestDispatcher(ServletContext context, String servletName, Servlet servlet) {
         this.context = context;
-        this.filterChain = filterChain;
+        this.servletName = servletName;
+        this.servlet = servlet;
+    }
+
+    ServletRequestDispatcher(ServletContext context, String path, RequestUrlPatternMapper.MappingData mappingData) {
+        this(context, mappingData.getServletName(), mappingData.getServlet());
+        this.path = path;
+        this.servletPath = mappingData.getServletPath();
+        this.pathInfo = mappingData.getPathInfo();
     }
 
     @Override
@@ -33,7 +49,50 @@ public class ServletRequestDispatcher implements RequestDispatcher {
 
     public void dispatch(ServletRequest request, ServletResponse response,DispatcherType dispatcherType) throws ServletException, IOException {
         request.setAttribute(ServletHttpServletRequest.DISPATCHER_TYPE, dispatcherType);
-        filterChain.doFilter(request, response);
+        if (servletPath != null && request instanceof ServletHttpServletRequest) {
+            ((ServletHttpServletRequest) request).setServletPathAndPathInfo(servletPath, pathInfo);
+        }
+        new ServletFilterChain(servlet, getFilters(request, dispatcherType)).doFilter(request, response);
+    }
+
+    private Filter[] getFilters(ServletRequest request, DispatcherType dispatcherType) {
+        if (path == null) {
+            return context.getFilters(servletName, dispatcherType, ((HttpServletRequest) request).getRequestURI());
+        }
+        return getPathFilters(dispatcherType);
+    }
+
+    private Filter[] getPathFilters(DispatcherType dispatcherType) {
+        Filter[] filters = filtersByType[dispatcherType.ordinal()];
+        if (filters == null) {
+            //并发时可能重复计算，结果相同
+            filters = context.getFilters(servletName, dispatcherType, path);
+            filtersByType[dispatcherType.ordinal()] = filters;
+        }
+        return filters;
+    }
+
+    /**
+     * @param dispatcherType 派发类型
+     * @param uri 请求URI，按名称获取的转发器用它匹配过滤器
+     * @return 是否有过滤器要执行，有过滤器时请求不能绕过过滤器直接应答
+     */
+    public boolean hasFilters(DispatcherType dispatcherType, String uri) {
+        Filter[] filters = path == null ? context.getFilters(servletName, dispatcherType, uri) : getPathFilters(dispatcherType);
+        return filters.length > 0;
+    }
+
+    public String getServletName() {
+        return servletName;
+    }
+
+    /**
+     * @return 目标servlet是否标记为不会阻塞，见ServletRegistration.setNonBlocking
+     */
+    public boolean isNonBlocking() {
+        javax.servlet.ServletRegistration registration = context.getServletRegistration(servletName);
+        return registration instanceof com.abchina.servlet.ServletRegistration
+                && ((com.abchina.servlet.ServletRegistration) registration).isNonBlocking();
     }
 
 }
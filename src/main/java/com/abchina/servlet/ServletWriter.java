@@ -0,0 +1,158 @@
+package com.abchina.servlet;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * 响应的字符输出，按响应的字符集把字符直接编码到输出流的缓冲区（ByteBuf），没有中间的编码器缓冲
+ * UTF-8用ByteBufUtil.writeUtf8，ISO-8859-1、US-ASCII范围内的字符直接写为字节，其他情况用编码器
+ * 与响应对象一起复用（对象池按线程缓存），编码器也随之复用，字符集不变时不再创建
+ */
+class ServletWriter extends Writer {
+
+    private static final int MODE_UTF8 = 1;
+    private static final int MODE_SINGLE_BYTE = 2;
+    private static final int MODE_ENCODER = 3;
+    //不成对的高代理换成单独的低代理再编码，编码器立即判为非法输入，按字符集替换（与String.getBytes相同）
+    private static final String LONE_SURROGATE = "\udc00";
+
+    private final ServletOutputStream outputStream;
+    private int mode;
+    private int singleByteLimit; //单字节字符集可以直接写出的字符上限
+    private CharsetEncoder encoder;
+    private boolean encoderUsed;
+    //写入的字符以高代理结尾时暂存，和下一次写入的低代理一起编码
+    private char pendingHighSurrogate;
+
+    ServletWriter(ServletOutputStream outputStream) {
+        this.outputStream = outputStream;
+    }
+
+    void init(Charset charset) {
+        String name = charset.name();
+        if ("UTF-8".equals(name)) {
+            mode = MODE_UTF8;
+        } else if ("ISO-8859-1".equals(name) || "US-ASCII".equals(name)) {
+            mode = MODE_SINGLE_BYTE;
+            singleByteLimit = "US-ASCII".equals(name) ? 0x80 : 0x100;
+        } else {
+            mode = MODE_ENCODER;
+        }
+        if (encoder == null || !encoder.charset().equals(charset)) {
+            encoder = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        } else {
+            encoder.reset();
+        }
+        encoderUsed = false;
+        pendingHighSurrogate = 0;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (c < 0x80 && mode != MODE_ENCODER && pendingHighSurrogate == 0) {
+            outputStream.write(c);
+            return;
+        }
+        write(CharBuffer.wrap(new char[]{(char) c}));
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        write(CharBuffer.wrap(cbuf, off, len));
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        write(CharBuffer.wrap(str, off, off + len));
+    }
+
+    @Override
+    public Writer append(CharSequence csq) throws IOException {
+        write(CharBuffer.wrap(csq == null ? "null" : csq));
+        return this;
+    }
+
+    @Override
+    public Writer append(CharSequence csq, int start, int end) throws IOException {
+        write(CharBuffer.wrap(csq == null ? "null" : csq, start, end));
+        return this;
+    }
+
+    private void write(CharBuffer chars) throws IOException {
+        if (!chars.hasRemaining()) {
+            return;
+        }
+        if (pendingHighSurrogate != 0) {
+            char high = pendingHighSurrogate;
+            pendingHighSurrogate = 0;
+            if (Character.isLowSurrogate(chars.get(chars.position()))) {
+                encode(CharBuffer.wrap(new char[]{high, chars.get()}));
+            } else {
+                encode(CharBuffer.wrap(LONE_SURROGATE));
+            }
+        }
+        int last = chars.limit() - 1;
+        if (last >= chars.position() && Character.isHighSurrogate(chars.get(last))) {
+            pendingHighSurrogate = chars.get(last);
+            chars.limit(last);
+        }
+        encode(chars);
+    }
+
+    private void encode(CharBuffer chars) throws IOException {
+        if (!chars.hasRemaining()) {
+            return;
+        }
+        if (mode == MODE_UTF8) {
+            outputStream.writeUtf8(chars);
+        } else if (mode == MODE_SINGLE_BYTE && isSingleByte(chars)) {
+            outputStream.writeSingleByte(chars);
+        } else {
+            encoderUsed = true;
+            outputStream.encode(chars, encoder, false);
+        }
+    }
+
+    private boolean isSingleByte(CharBuffer chars) {
+        for (int i = chars.position(); i < chars.limit(); i++) {
+            if (chars.get(i) >= singleByteLimit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 响应结束前调用：写出暂存的不成对高代理，结束编码器的状态
+     */
+    void finish() throws IOException {
+        if (pendingHighSurrogate != 0) {
+            pendingHighSurrogate = 0;
+            encode(CharBuffer.wrap(LONE_SURROGATE));
+        }
+        if (encoderUsed) {
+            encoderUsed = false;
+            outputStream.encode(CharBuffer.allocate(0), encoder, true);
+        }
+    }
+
+    /**
+     * 没有自己的缓冲，写出输出流中缓冲的内容
+     */
+    @Override
+    public void flush() throws IOException {
+        outputStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        outputStream.close();
+    }
+}
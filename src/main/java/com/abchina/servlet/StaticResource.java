@@ -0,0 +1,214 @@
+package com.abchina.servlet;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.io.File;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ *
+ * 已解压到本地文件的静态资源，不可变，可以被多个请求共享
+ * 创建时预先计算好ETag、Last-Modified等响应头，小文件的内容同时缓存在内存中
+ * 可压缩的资源带有预压缩的变体（jar中打包的.br/.gz或首次请求时压缩一次），按Accept-Encoding选择
+ */
+public class StaticResource {
+
+    /**
+     * RFC1123格式，用于Last-Modified与If-Modified-Since，SimpleDateFormat非线程安全，放在ThreadLocal里
+     */
+    private static final FastThreadLocal<DateFormat> HTTP_DATE_FORMAT = new FastThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            DateFormat df = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.ENGLISH);
+            df.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return df;
+        }
+    };
+
+    private final String path;
+    private final File file;
+    private final long length;
+    private final long lastModified;
+    private final String contentType;
+    private final String etag;
+    private final String lastModifiedHeader;
+    private final ByteBuf content; //内存缓存，大文件为null
+    private final String contentEncoding; //未压缩为null
+    private final Map<String, StaticResource> encodedVariants; //key为编码，如br、gzip
+
+    StaticResource(String path, File file, long length, long lastModified, String contentType, ByteBuf content,
+                   String contentEncoding, Map<String, StaticResource> encodedVariants) {
+        this.path = path;
+        this.file = file;
+        this.length = length;
+        this.lastModified = lastModified / 1000 * 1000; //HTTP日期只精确到秒
+        this.contentType = contentType;
+        this.content = content;
+        this.contentEncoding = contentEncoding;
+        this.encodedVariants = encodedVariants == null ? Collections.emptyMap() : encodedVariants;
+        this.etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(this.lastModified)
+                + (contentEncoding == null ? "" : "-" + contentEncoding) + "\"";
+        this.lastModifiedHeader = formatHttpDate(this.lastModified);
+    }
+
+    /**
+     * 按Accept-Encoding选择要发送的变体，优先br，其次gzip
+     * @param acceptEncoding 请求的Accept-Encoding，可以为null
+     * @return 压缩的变体，没有合适的变体时返回自身
+     */
+    public StaticResource select(CharSequence acceptEncoding) {
+        if (encodedVariants.isEmpty() || acceptEncoding == null) {
+            return this;
+        }
+        StaticResource variant = encodedVariants.get(ServletCompressionConfig.BR);
+        if (variant != null && ServletCompressionConfig.acceptsEncoding(acceptEncoding, ServletCompressionConfig.BR)) {
+            return variant;
+        }
+        variant = encodedVariants.get(ServletCompressionConfig.GZIP);
+        if (variant != null && ServletCompressionConfig.acceptsEncoding(acceptEncoding, ServletCompressionConfig.GZIP)) {
+            return variant;
+        }
+        return this;
+    }
+
+    /**
+     * @return 是否有压缩的变体，有则响应需要带Vary: Accept-Encoding
+     */
+    public boolean isVaryByEncoding() {
+        return contentEncoding != null || !encodedVariants.isEmpty();
+    }
+
+    /**
+     * @param millis 时间戳
+     * @return RFC1123格式的HTTP日期
+     */
+    public static String formatHttpDate(long millis) {
+        return HTTP_DATE_FORMAT.get().format(new Date(millis));
+    }
+
+    /**
+     * 按RFC7232判断客户端缓存是否仍然有效，有If-None-Match时忽略If-Modified-Since
+     * @param ifNoneMatch If-None-Match请求头，可以为null
+     * @param ifModifiedSince If-Modified-Since请求头，可以为null
+     * @return true=可以直接响应304
+     */
+    public boolean isNotModified(String ifNoneMatch, String ifModifiedSince) {
+        if (ifNoneMatch != null) {
+            return matchesETag(ifNoneMatch);
+        }
+        if (ifModifiedSince == null) {
+            return false;
+        }
+        if (ifModifiedSince.equals(lastModifiedHeader)) { //浏览器一般原样带回Last-Modified，不必解析
+            return true;
+        }
+        try {
+            return lastModified <= HTTP_DATE_FORMAT.get().parse(ifModifiedSince).getTime();
+        } catch (ParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * If-None-Match可以是*或逗号分隔的多个ETag，按弱比较（忽略W/前缀）匹配
+     */
+    private boolean matchesETag(String ifNoneMatch) {
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if ("*".equals(tag) || etag.equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return jar内的路径
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return 解压后的本地文件，可以直接用DefaultFileRegion零拷贝发送
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return Content-Encoding，未压缩为null
+     */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * @return 格式化好的Last-Modified响应头
+     */
+    public String getLastModifiedHeader() {
+        return lastModifiedHeader;
+    }
+
+    /**
+     * @return 文件内容是否缓存在内存中
+     */
+    public boolean hasContent() {
+        return content != null;
+    }
+
+    /**
+     * 每次发送使用独立读写索引的duplicate，并retain一次，由调用方（发送完成后）释放
+     * @return 内存中的文件内容，大文件返回null
+     */
+    public ByteBuf getContent() {
+        return content == null ? null : content.duplicate().retain();
+    }
+
+    /**
+     * @return 在缓存中占用的权重，即内存中的字节数（包括压缩的变体）
+     */
+    int getWeight() {
+        int weight = content == null ? 0 : content.capacity();
+        for (StaticResource variant : encodedVariants.values()) {
+            weight += variant.getWeight();
+        }
+        return weight;
+    }
+
+    @Override
+    public String toString() {
+        return path + "{" +
+                "length=" + length +
+                ", lastModified=" + lastModified +
+                ", etag=" + etag +
+                '}';
+    }
+}
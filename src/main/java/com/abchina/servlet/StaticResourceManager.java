@@ -0,0 +1,260 @@
+package com.abchina.servlet;
+
+import cn.hutool.core.util.StrUtil;
+import com.abchina.util.FileUtils;
+import com.abchina.util.MimeTypeUtil;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ *
+ * 静态资源管理
+ * 部署的jar只打开、索引一次，资源在第一次被请求时解压到本地临时目录，之后直接以文件的方式零拷贝发送
+ * 已解压的资源放在按字节数限制大小的LRU缓存中，小文件的内容同时缓存在内存里
+ * 可压缩的资源优先使用jar中打包的.br/.gz文件，没有时压缩一次，之后的请求直接发送压缩结果
+ */
+public class StaticResourceManager implements Closeable {
+
+    private static final String EXTRACT_DIR_NAME = "netty-server";
+    //每个缓存条目本身（路径、响应头等）大致占用的字节数
+    private static final int ENTRY_OVERHEAD = 256;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final File jar;
+    private final File extractDir;
+    private final String pathPrefix; //请求URI中jar内路径之前的部分
+    private final int maxContentSize;
+    private final ServletCompressionConfig compressionConfig;
+    private JarFile jarFile;
+    //jar内所有文件条目，key为条目名称
+    private Map<String, JarEntry> entryIndex;
+    //已解压的资源，key为jar内的路径
+    private final Cache<String, StaticResource> resourceCache;
+
+    /**
+     * @param jar 部署的jar
+     * @param maxCacheSize 缓存的最大字节数
+     * @param maxContentSize 不超过该大小的文件内容缓存在内存中
+     * @param compressionConfig 压缩配置，开启时可压缩的资源压缩一次后缓存，可以为null
+     */
+    public StaticResourceManager(File jar, long maxCacheSize, int maxContentSize, ServletCompressionConfig compressionConfig) {
+        this.jar = jar;
+        this.extractDir = new File(System.getProperty("java.io.tmpdir"),
+                EXTRACT_DIR_NAME + File.separator + jar.getName() + "-" + jar.lastModified());
+        this.pathPrefix = StrUtil.subBefore(jar.getName(), ".", true) + "/";
+        this.maxContentSize = maxContentSize;
+        this.compressionConfig = compressionConfig;
+        this.resourceCache = CacheBuilder.newBuilder()
+                .maximumWeight(maxCacheSize)
+                .weigher((String path, StaticResource resource) -> ENTRY_OVERHEAD + resource.getWeight())
+                .build();
+    }
+
+    /**
+     * 请求URI转换为jar内的路径
+     * @param requestURI 请求URI，可以带查询字符串
+     * @return jar内的路径
+     */
+    public String resolvePath(String requestURI) {
+        int queryInx = requestURI.indexOf('?');
+        if (queryInx > -1) {
+            requestURI = requestURI.substring(0, queryInx);
+        }
+        return StrUtil.subAfter(requestURI, pathPrefix, true);
+    }
+
+    /**
+     * 只查缓存，不访问jar和磁盘，可以在事件循环上调用
+     * @param path jar内的路径
+     * @return 已缓存的静态资源，没有则返回null
+     */
+    public StaticResource getCachedResource(String path) {
+        return path == null ? null : resourceCache.getIfPresent(path);
+    }
+
+    /**
+     * 获取静态资源，不存在或是目录时返回null
+     * @param path jar内的路径（不以/开头）
+     * @return 静态资源
+     * @throws IOException 读取jar或解压失败
+     */
+    public StaticResource getResource(String path) throws IOException {
+        if (path == null) {
+            return null;
+        }
+        StaticResource resource = resourceCache.getIfPresent(path);
+        if (resource != null) {
+            return resource;
+        }
+        JarEntry entry = getEntryIndex().get(path);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            //同一路径并发请求时只解压一次
+            return resourceCache.get(path, () -> load(path, entry));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Cannot load static resource " + path, e.getCause());
+        }
+    }
+
+    /**
+     * 打开jar并建立条目索引，只执行一次
+     */
+    private synchronized Map<String, JarEntry> getEntryIndex() throws IOException {
+        if (entryIndex == null) {
+            jarFile = new JarFile(jar);
+            Map<String, JarEntry> index = new HashMap<>();
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry jarEntry = entries.nextElement();
+                if (!jarEntry.isDirectory()) {
+                    index.put(jarEntry.getName(), jarEntry);
+                }
+            }
+            entryIndex = index;
+            logger.debug("Indexed {} entries of {}", index.size(), jar);
+        }
+        return entryIndex;
+    }
+
+    /**
+     * 解压条目并加载为静态资源，可压缩的资源同时准备好压缩的变体
+     */
+    private StaticResource load(String path, JarEntry entry) throws IOException {
+        File target = extract(path, entry);
+        long length = target.length();
+        String contentType = MimeTypeUtil.getMimeTypeByFileName(path);
+
+        Map<String, StaticResource> variants = new HashMap<>();
+        //优先使用jar中打包好的压缩文件
+        addPackagedVariant(variants, path, ServletCompressionConfig.BR, ".br", contentType, length);
+        addPackagedVariant(variants, path, ServletCompressionConfig.GZIP, ".gz", contentType, length);
+        //没有打包gzip文件时压缩一次，结果保存在解压目录
+        if (!variants.containsKey(ServletCompressionConfig.GZIP) && compressionConfig != null
+                && compressionConfig.isEnabled() && compressionConfig.isCompressible(contentType, length)) {
+            File gzipFile = gzip(target, new File(extractDir, path + ".gz"));
+            if (gzipFile.length() < length) {
+                variants.put(ServletCompressionConfig.GZIP, newResource(path + ".gz", gzipFile,
+                        target.lastModified(), contentType, ServletCompressionConfig.GZIP, null));
+            }
+        }
+        return newResource(path, target, target.lastModified(), contentType, null, variants);
+    }
+
+    private void addPackagedVariant(Map<String, StaticResource> variants, String path, String encoding, String suffix,
+                                    String contentType, long length) throws IOException {
+        String variantPath = path + suffix;
+        JarEntry variantEntry = getEntryIndex().get(variantPath);
+        if (variantEntry == null) {
+            return;
+        }
+        File variantFile = extract(variantPath, variantEntry);
+        if (variantFile.length() < length) {
+            variants.put(encoding, newResource(variantPath, variantFile, variantFile.lastModified(), contentType, encoding, null));
+        }
+    }
+
+    /**
+     * 不超过maxContentSize的文件内容读入内存
+     */
+    private StaticResource newResource(String path, File file, long lastModified, String contentType,
+                                       String contentEncoding, Map<String, StaticResource> variants) throws IOException {
+        long length = file.length();
+        ByteBuf content = null;
+        if (length <= maxContentSize) {
+            //堆内存，不占用直接内存；缓存持有的引用从不释放，被缓存淘汰后由GC回收，发送中的duplicate不受影响
+            content = Unpooled.wrappedBuffer(Files.readAllBytes(file.toPath()));
+        }
+        return new StaticResource(path, file, length, lastModified, contentType, content, contentEncoding, variants);
+    }
+
+    /**
+     * gzip压缩文件，目标文件已存在时直接复用（解压目录按jar的修改时间区分，不会过期）
+     */
+    private File gzip(File source, File target) throws IOException {
+        if (target.isFile() && target.lastModified() == source.lastModified()) {
+            return target;
+        }
+        File tmp = File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+        try {
+            try (OutputStream output = new GZIPOutputStream(new FileOutputStream(tmp)) {
+                {
+                    def.setLevel(Deflater.BEST_COMPRESSION);
+                }
+            }) {
+                Files.copy(source.toPath(), output);
+            }
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+        target.setLastModified(source.lastModified());
+        return target;
+    }
+
+    /**
+     * 解压条目到本地文件，已存在且大小一致的文件直接复用
+     */
+    private File extract(String path, JarEntry entry) throws IOException {
+        File target = new File(extractDir, path);
+        if (!target.getCanonicalPath().startsWith(extractDir.getCanonicalPath() + File.separator)) {
+            throw new IOException("Illegal jar entry name " + path);
+        }
+        long lastModified = entry.getTime() > 0 ? entry.getTime() : jar.lastModified();
+        if (!target.isFile() || entry.getSize() < 0 || target.length() != entry.getSize()) {
+            File parent = target.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+                throw new IOException("Cannot create directory " + parent);
+            }
+            File tmp = File.createTempFile(target.getName(), ".tmp", parent);
+            try (InputStream input = jarFile.getInputStream(entry)) {
+                Files.copy(input, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp.toPath());
+            }
+            target.setLastModified(lastModified);
+        }
+        return target;
+    }
+
+    /**
+     * 关闭jar并删除解压目录
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        resourceCache.invalidateAll();
+        entryIndex = null;
+        if (jarFile != null) {
+            jarFile.close();
+            jarFile = null;
+        }
+        FileUtils.deleteDir(extractDir);
+    }
+}
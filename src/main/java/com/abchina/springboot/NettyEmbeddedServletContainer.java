@@ -1,22 +1,25 @@
 package com.abchina.springboot;
 
-import cn.hutool.core.util.StrUtil;
 import com.abchina.servlet.ServletContext;
 import com.abchina.servlet.ServletRegistration;
+import com.abchina.servlet.ServletCompressionConfig;
+import com.abchina.servlet.StaticResourceManager;
 import com.abchina.core.AbstractNettyServer;
+import com.abchina.core.AsyncExecutor;
+import com.abchina.core.DefaultDispatchExecutor;
+import com.abchina.core.DispatchExecutor;
+import com.abchina.core.DispatchLoadShedder;
 import com.abchina.util.JarResourceParser;
 import com.abchina.util.WebXmlModel;
 import io.netty.channel.Channel;
-import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslHandler;
-import io.netty.util.concurrent.DefaultEventExecutorGroup;
-import io.netty.util.concurrent.EventExecutorGroup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.context.embedded.EmbeddedServletContainer;
@@ -27,43 +30,63 @@ import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLException;
 import javax.servlet.ServletException;
 import java.io.File;
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  *
  */
 public class NettyEmbeddedServletContainer extends AbstractNettyServer implements EmbeddedServletContainer {
     private static Logger log = LoggerFactory.getLogger(NettyEmbeddedServletContainer.class);
-    private ServletContext servletContext;
-    private EventExecutorGroup dispatcherExecutorGroup;
-    private ChannelHandler dispatcherHandler;
-    //servlet上下文集合，key为contextPath value为servlet上下文
-    private Map<String, ServletContext> servletContextMap = new HashMap<>();
-    //调度器
-    private Map<String, NettyServletDispatcherHandler> dispatcherHandlerMap = new HashMap<>();
-    private Map<String, DefaultEventExecutorGroup> executorGroupMap = new HashMap<>();
+    static final String H2C_UPGRADE_HANDLER_NAME = "H2cUpgrade";
+    static final String HTTP2_HANDLER_NAME = "Http2";
+    static final String COMPRESSOR_HANDLER_NAME = "Compressor";
+    static final String PIPELINING_HANDLER_NAME = "Pipelining";
+    private static final NettyEncodedResponseHandler ENCODED_RESPONSE_HANDLER = new NettyEncodedResponseHandler();
+    //servlet上下文集合，key为部署路径 value为servlet上下文，按部署顺序，第一个为默认上下文
+    private Map<String, ServletContext> servletContextMap = new LinkedHashMap<>();
+    //所有上下文共用的调度器与业务线程池
+    private DispatchExecutor dispatchExecutor;
+    private NettyServletDispatcherHandler dispatcherHandler;
+    //所有上下文共用的异步servlet执行器
+    private AsyncExecutor asyncExecutor;
+    //按请求路径选择上下文
+    private NettyServletContextRouter contextRouter;
+    //流式请求体模式，不再聚合HttpContent，请求头到达即派发servlet
+    private boolean streamingRequestBody;
+    //聚合模式下请求体的最大长度
+    private int maxContentLength = 512 * 1024;
+    //流式请求体模式下请求体的最大长度
+    private long maxStreamingContentLength = 100L * 1024 * 1024;
+    //接受明文HTTP/2（h2c），包括prior knowledge与Upgrade: h2c
+    private boolean http2Enabled;
 
     public NettyEmbeddedServletContainer(ServletContext servletContext, int bizThreadCount) {
-        super(servletContext.getServerSocketAddress());
-        this.servletContext = servletContext;
-        this.dispatcherExecutorGroup = new DefaultEventExecutorGroup(bizThreadCount);
-        this.dispatcherHandler = new NettyServletDispatcherHandler(servletContext);
-        setInitializerMap(newInitializerChannelHandlerMap());
+        this(Collections.singletonList(servletContext), bizThreadCount);
     }
 
     public NettyEmbeddedServletContainer(List<ServletContext> servletContexts, int bizThreadCount){
+        this(servletContexts, new DefaultDispatchExecutor(bizThreadCount));
+    }
+
+    /**
+     * 多个servlet上下文（多个部署jar）共用一个监听端口和一组事件循环，请求按部署路径路由
+     * @param servletContexts servlet上下文，第一个为没有匹配路径时的默认上下文
+     * @param dispatchExecutor 执行servlet的业务执行器
+     */
+    public NettyEmbeddedServletContainer(List<ServletContext> servletContexts, DispatchExecutor dispatchExecutor){
         super(servletContexts.get(0).getServerSocketAddress());
         for(ServletContext servletContext : servletContexts){
-            String contextPath = servletContext.getFile() == null ? "" : servletContext.getFile().getName();
-            servletContextMap.put(contextPath, servletContext);
-            dispatcherHandlerMap.put(contextPath, new NettyServletDispatcherHandler(servletContext));
-            executorGroupMap.put(contextPath, new DefaultEventExecutorGroup(bizThreadCount));
+            servletContextMap.put(servletContext.getDeployPath(), servletContext);
         }
-        setInitializerMap(newInitializerChannelHandlerMap());
+        this.contextRouter = new NettyServletContextRouter(servletContextMap.values());
+        this.dispatchExecutor = dispatchExecutor;
+        this.dispatcherHandler = new NettyServletDispatcherHandler(dispatchExecutor, new DispatchLoadShedder());
     }
 
     @Override
@@ -73,65 +96,148 @@ public class NettyEmbeddedServletContainer extends AbstractNettyServer implement
             protected void initChannel(SocketChannel ch) throws Exception {
                 ChannelPipeline pipeline = ch.pipeline();
 
-                pipeline.addLast("HttpCodec", new HttpServerCodec(4096, 8192, 8192, false)); //HTTP编码解码Handler
-                pipeline.addLast("Aggregator", new HttpObjectAggregator(512 * 1024));  // HTTP聚合，设置最大消息值为512KB
-                pipeline.addLast("ServletCodec",new NettyServletCodecHandler(servletContext) ); //处理请求，读入数据，生成Request和Response对象
-                pipeline.addLast(dispatcherExecutorGroup, "Dispatcher", dispatcherHandler); //获取请求分发器，让对应的Servlet处理请求，同时处理404情况
+                pipeline.addLast("EncodedResponse", ENCODED_RESPONSE_HANDLER); //预先编码好的响应（过载时的503）直接写出，不经过HttpCodec
+                addHttpCodec(pipeline); //HTTP编码解码Handler，开启h2c时还包括HTTP/2的识别与升级
+                addCompressorIfEnabled(pipeline, getDefaultServletContext()); //按内容类型和长度压缩响应
+                pipeline.addLast(PIPELINING_HANDLER_NAME, new NettyPipeliningHandler()); //管线化的响应按请求顺序写出，合并flush
+                pipeline.addLast("ContextRouter", contextRouter); //按部署路径选择servlet上下文
+                pipeline.addLast("StaticResource", new NettyStaticResourceHandler()); //静态资源的条件请求直接在事件循环上响应304
+                if (!streamingRequestBody) {
+                    pipeline.addLast("Aggregator", new HttpObjectAggregator(maxContentLength));  // HTTP聚合，默认最大消息值为512KB
+                }
+                pipeline.addLast("ServletCodec",new NettyServletCodecHandler(streamingRequestBody ? maxStreamingContentLength : 0)); //处理请求，读入数据，生成Request和Response对象
+                pipeline.addLast("Dispatcher", dispatcherHandler); //获取请求分发器，交给业务执行器让对应的Servlet处理请求，同时处理404情况
             }
         };
     }
 
-    @Override
-    protected Map<String, ChannelInitializer<? extends Channel>> newInitializerChannelHandlerMap() {
-        Map<String, ChannelInitializer<? extends Channel>> initializerMap = new HashMap<>();
-        Set<String> keySet = servletContextMap.keySet();
-        for(String contextPath : keySet){
-            initializerMap.put(contextPath, newInitializerChannelHandler(contextPath));
+    /**
+     * 压缩配置来自工厂，所有上下文相同
+     */
+    private ServletContext getDefaultServletContext() {
+        return servletContextMap.values().iterator().next();
+    }
+
+    /**
+     * 加入HTTP/1.1编解码处理器
+     * 开启h2c时，在它之前加入HTTP/2连接前言的识别，之后加入Upgrade: h2c的升级处理，
+     * 两种方式都会把HTTP/1.1的处理器替换为HTTP/2连接处理器，每个流的请求仍然经过后面同一组handler
+     */
+    private void addHttpCodec(ChannelPipeline pipeline) {
+        HttpServerCodec httpServerCodec = new HttpServerCodec(4096, 8192, 8192, false);
+        if (!http2Enabled) {
+            pipeline.addLast("HttpCodec", httpServerCodec);
+            return;
         }
-        return initializerMap;
+        pipeline.addLast("H2cPriorKnowledge", new NettyHttp2PriorKnowledgeHandler(maxContentLength));
+        pipeline.addLast("HttpCodec", httpServerCodec);
+        pipeline.addLast(H2C_UPGRADE_HANDLER_NAME, new HttpServerUpgradeHandler(httpServerCodec,
+                NettyHttp2ServerUpgradeCodec.newUpgradeCodecs(HTTP2_HANDLER_NAME, maxContentLength), maxContentLength));
     }
 
-    protected ChannelInitializer<? extends Channel> newInitializerChannelHandler(String contextPath) {
-        return new ChannelInitializer<SocketChannel>() {
-            @Override
-            protected void initChannel(SocketChannel ch) throws Exception {
-                ChannelPipeline pipeline = ch.pipeline();
+    /**
+     * 开启了压缩时加入压缩处理器，需要在所有写响应的handler与管线化排序之前（靠近HttpCodec），按请求顺序看到响应
+     */
+    private void addCompressorIfEnabled(ChannelPipeline pipeline, ServletContext servletContext) {
+        ServletCompressionConfig compressionConfig = servletContext.getCompressionConfig();
+        if (compressionConfig != null && compressionConfig.isEnabled()) {
+            pipeline.addLast(COMPRESSOR_HANDLER_NAME, new NettyHttpContentCompressor(compressionConfig));
+        }
+    }
 
-                pipeline.addLast("HttpCodec", new HttpServerCodec(4096, 8192, 8192, false)); //HTTP编码解码Handler
-                pipeline.addLast("Aggregator", new HttpObjectAggregator(512 * 1024));  // HTTP聚合，设置最大消息值为512KB
-                pipeline.addLast("ServletCodec",new NettyServletCodecHandler(servletContextMap.get(contextPath)) ); //处理请求，读入数据，生成Request和Response对象
-                pipeline.addLast(executorGroupMap.get(contextPath), "Dispatcher", dispatcherHandlerMap.get(contextPath)); //获取请求分发器，让对应的Servlet处理请求，同时处理404情况
-            }
-        };
+    /**
+     * 开启流式请求体模式：不安装HttpObjectAggregator，HttpContent逐块进入ServletInputStream，
+     * 请求头到达后立即派发servlet，请求体大小不再受聚合上限限制
+     * @param streamingRequestBody 是否开启
+     */
+    public void setStreamingRequestBody(boolean streamingRequestBody) {
+        this.streamingRequestBody = streamingRequestBody;
     }
 
-    @Override
-    public void start() throws EmbeddedServletContainerException {
+    public boolean isStreamingRequestBody() {
+        return streamingRequestBody;
+    }
+
+    /**
+     * @param maxContentLength 聚合模式下请求体的最大长度（字节）
+     */
+    public void setMaxContentLength(int maxContentLength) {
+        this.maxContentLength = maxContentLength;
+    }
+
+    public int getMaxContentLength() {
+        return maxContentLength;
+    }
+
+    /**
+     * @param maxStreamingContentLength 流式请求体模式下请求体的最大长度（字节），默认100MB，小于等于0表示不限制
+     */
+    public void setMaxStreamingContentLength(long maxStreamingContentLength) {
+        this.maxStreamingContentLength = maxStreamingContentLength;
+    }
+
+    public long getMaxStreamingContentLength() {
+        return maxStreamingContentLength;
+    }
+
+    /**
+     * 开启明文HTTP/2（h2c），同一端口同时接受HTTP/1.1
+     * HTTP/2的每个流的请求体总是聚合后派发，大小受maxContentLength限制；HTTP/2连接上不压缩响应
+     * @param http2Enabled 是否开启
+     */
+    public void setHttp2Enabled(boolean http2Enabled) {
+        this.http2Enabled = http2Enabled;
+    }
+
+    /**
+     * 业务执行器的过载保护，在start之前设置
+     * @param loadShedder 排队深度、排队时间的限制
+     */
+    public void setLoadShedder(DispatchLoadShedder loadShedder) {
+        this.dispatcherHandler = new NettyServletDispatcherHandler(dispatchExecutor, loadShedder);
+    }
 
-        Set<String> keySet = servletContextMap.keySet();
-        for(String contextPath : keySet){
-            start(servletContextMap.get(contextPath));
+    /**
+     * 所有上下文共用的异步servlet执行器，随容器关闭，在start之前设置
+     * @param asyncExecutor 异步执行器
+     */
+    public void setAsyncExecutor(AsyncExecutor asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+        for(ServletContext servletContext : servletContextMap.values()){
+            servletContext.setAsyncExecutorService(asyncExecutor);
         }
+    }
 
+    /**
+     * @return 异步servlet执行器，可以观察活动线程数、排队数与排队时间
+     */
+    public AsyncExecutor getAsyncExecutor() {
+        return asyncExecutor;
     }
 
-    private void start(ServletContext servletContext){
-        //加载/build目录下的资源
-        loadResources(servletContext);
-        //初始化servlet
-        initServlet(servletContext);
-        servletContext.setInitialized(true);
+    public boolean isHttp2Enabled() {
+        return http2Enabled;
+    }
 
-        String serverInfo = servletContext.getServerInfo();
+    @Override
+    public void start() throws EmbeddedServletContainerException {
+        //服务线程上的异常不会传到这里，参数错误在启动前报告
+        getTuning().validate();
+        for(ServletContext servletContext : servletContextMap.values()){
+            //加载/build目录下的资源
+            loadResources(servletContext);
+            //初始化servlet
+            initServlet(servletContext);
+            servletContext.setInitialized(true);
+        }
 
         Thread serverThread = new Thread(this);
-        String threadName = servletContext.getFile() == null ? "" : servletContext.getFile().getName();
-        serverThread.setName(threadName);
+        serverThread.setName("nettyServer");
         serverThread.setUncaughtExceptionHandler((thread,throwable)->{
             //
         });
         serverThread.start();
-        log.info("启动成功{}[{}]", serverInfo, getPort());
+        log.info("启动成功{}[{}] {}", getDefaultServletContext().getServerInfo(), getPort(), servletContextMap.keySet());
     }
 
     /**
@@ -154,27 +260,40 @@ public class NettyEmbeddedServletContainer extends AbstractNettyServer implement
 
     @Override
     public void stop() throws EmbeddedServletContainerException {
-        destroyServlet();
-        super.stop();
-    }
-
-    @Override
-    public int getPort() {
-        return super.getPort();
+        try {
+            destroyServlet();
+            closeStaticResources();
+            super.stop();
+        } finally {
+            dispatchExecutor.shutdownGracefully();
+            if(asyncExecutor != null){
+                asyncExecutor.shutdown();
+            }
+        }
     }
 
-    private void initServlet(){
-        Map<String, ServletRegistration> servletRegistrationMap = servletContext.getServletRegistrations();
-        for(Map.Entry<String,ServletRegistration> entry : servletRegistrationMap.entrySet()){
-            ServletRegistration registration = entry.getValue();
+    /**
+     * 关闭部署jar并清理解压的静态资源
+     */
+    private void closeStaticResources(){
+        for(ServletContext servletContext : servletContextMap.values()){
+            StaticResourceManager resourceManager = servletContext.getStaticResourceManager();
+            if(resourceManager == null){
+                continue;
+            }
             try {
-                registration.getServlet().init(registration.getServletConfig());
-            } catch (ServletException e) {
-                throw new EmbeddedServletContainerException(e.getMessage(),e);
+                resourceManager.close();
+            } catch (IOException e) {
+                log.warn("关闭静态资源失败{}", servletContext.getFile(), e);
             }
         }
     }
 
+    @Override
+    public int getPort() {
+        return super.getPort();
+    }
+
     private void initServlet(ServletContext servletContext){
         Map<String, ServletRegistration> servletRegistrationMap = servletContext.getServletRegistrations();
         for(Map.Entry<String,ServletRegistration> entry : servletRegistrationMap.entrySet()){
@@ -188,10 +307,12 @@ public class NettyEmbeddedServletContainer extends AbstractNettyServer implement
     }
 
     private void destroyServlet(){
-        Map<String, ServletRegistration> servletRegistrationMap = servletContext.getServletRegistrations();
-        for(Map.Entry<String,ServletRegistration> entry : servletRegistrationMap.entrySet()){
-            ServletRegistration registration = entry.getValue();
-            registration.getServlet().destroy();
+        for(ServletContext servletContext : servletContextMap.values()){
+            Map<String, ServletRegistration> servletRegistrationMap = servletContext.getServletRegistrations();
+            for(Map.Entry<String,ServletRegistration> entry : servletRegistrationMap.entrySet()){
+                ServletRegistration registration = entry.getValue();
+                registration.getServlet().destroy();
+            }
         }
     }
 
@@ -204,11 +325,8 @@ public class NettyEmbeddedServletContainer extends AbstractNettyServer implement
     private static void loadServletFilter(ServletContext servletContext, WebXmlModel webXmlModel) throws ClassNotFoundException {
         //servlet部分
         WebXmlModel.ServletMappingNode[] servletMappingNodes = webXmlModel.getServletMappingNodes();
-        String name = "";
+        String name = servletContext.getDeployPath();
         Map<String, String> mappingNodes = new HashMap<>();
-        if(servletContext.getFile() != null){
-            name = StrUtil.subBefore(servletContext.getFile().getName(), ".", true);
-        }
         if(!name.startsWith("/")){
             name = "/" + name;
         }
@@ -236,7 +354,9 @@ public class NettyEmbeddedServletContainer extends AbstractNettyServer implement
         WebXmlModel.FilterMapping[] filterMappings = webXmlModel.getFilterMappings();
         Map<String, String> filterMappingNodes = new HashMap<>();
         for(WebXmlModel.FilterMapping filterMapping : filterMappings){
-            filterMappingNodes.put(filterMapping.getFilterName(), filterMapping.getUrlPattern());
+            //扩展名匹配不带路径，不加部署路径
+            String urlPattern = filterMapping.getUrlPattern();
+            filterMappingNodes.put(filterMapping.getFilterName(), urlPattern != null && urlPattern.startsWith("/") ? name + urlPattern : urlPattern);
         }
         WebXmlModel.FilterNode[] filterNodes = webXmlModel.getFilterNodes();
 
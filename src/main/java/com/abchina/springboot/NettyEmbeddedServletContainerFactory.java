@@ -1,10 +1,19 @@
 package com.abchina.springboot;
 
+import com.abchina.core.AsyncExecutor;
+import com.abchina.core.DefaultDispatchExecutor;
+import com.abchina.core.DispatchExecutor;
+import com.abchina.core.DispatchLoadShedder;
+import com.abchina.core.NettyServerTuning;
+import com.abchina.core.VirtualThreadDispatchExecutor;
 import com.abchina.core.constants.HttpConstants;
+import com.abchina.servlet.ServletCompressionConfig;
 import com.abchina.servlet.ServletContext;
 import com.abchina.servlet.ServletDefaultHttpServlet;
 import com.abchina.servlet.ServletSessionCookieConfig;
+import io.netty.handler.codec.http.multipart.DefaultHttpDataFactory;
 import org.springframework.boot.context.embedded.AbstractEmbeddedServletContainerFactory;
+import org.springframework.boot.context.embedded.Compression;
 import org.springframework.boot.context.embedded.EmbeddedServletContainer;
 import org.springframework.boot.context.embedded.EmbeddedServletContainerFactory;
 import org.springframework.boot.web.servlet.ServletContextInitializer;
@@ -19,9 +28,12 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
 
 /**
  *
@@ -30,6 +42,30 @@ import java.util.Map;
 public class NettyEmbeddedServletContainerFactory extends AbstractEmbeddedServletContainerFactory implements EmbeddedServletContainerFactory , ResourceLoaderAware {
 
     protected ResourceLoader resourceLoader;
+    //流式请求体模式
+    private boolean streamingRequestBody = false;
+    //聚合模式下请求体的最大长度
+    private int maxContentLength = 512 * 1024;
+    //流式请求体模式下请求体的最大长度
+    private long maxStreamingContentLength = 100L * 1024 * 1024;
+    //明文HTTP/2（h2c）
+    private boolean http2Enabled = false;
+    //SO_REUSEPORT的acceptor数量（仅epoll）
+    private int acceptorCount = 1;
+    //线程数与socket参数，默认按容器实际可用的CPU计算
+    private NettyServerTuning tuning = new NettyServerTuning();
+    //在虚拟线程上执行servlet（JDK21及以上）
+    private boolean virtualThreadDispatch = false;
+    //自定义的业务执行器，设置后忽略virtualThreadDispatch与tuning中的业务线程数
+    private DispatchExecutor dispatchExecutor;
+    //业务执行器的过载保护，默认不限制
+    private DispatchLoadShedder loadShedder = new DispatchLoadShedder();
+    //异步servlet执行器队列满时的拒绝策略，默认抛出异常，由异步上下文通知onError并结束响应
+    private RejectedExecutionHandler asyncRejectedExecutionHandler = new ThreadPoolExecutor.AbortPolicy();
+    //每个servlet上下文按请求路径缓存的转发器数量
+    private int dispatcherCacheSize = 1024;
+    //表单字段与上传文件超过该大小时写入临时文件
+    private long fileSizeThreshold = DefaultHttpDataFactory.MINSIZE;
 
     @Override
     public EmbeddedServletContainer getEmbeddedServletContainer(ServletContextInitializer... initializers) {
@@ -65,15 +101,56 @@ public class NettyEmbeddedServletContainerFactory extends AbstractEmbeddedServle
      * @return netty容器
      */
     public NettyEmbeddedServletContainer newNettyEmbeddedServletContainer(ServletContext servletContext){
-        NettyEmbeddedServletContainer container = new NettyEmbeddedServletContainer(servletContext, 50);
+        NettyEmbeddedServletContainer container = new NettyEmbeddedServletContainer(Collections.singletonList(servletContext), newDispatchExecutor());
+        configureContainer(container);
         return container;
     }
 
     public NettyEmbeddedServletContainer newNettyEmbeddedServletContainer(List<ServletContext> servletContext){
-        NettyEmbeddedServletContainer container = new NettyEmbeddedServletContainer(servletContext, 50);
+        NettyEmbeddedServletContainer container = new NettyEmbeddedServletContainer(servletContext, newDispatchExecutor());
+        configureContainer(container);
         return container;
     }
 
+    /**
+     * @return 执行servlet的业务执行器
+     */
+    protected DispatchExecutor newDispatchExecutor(){
+        if(dispatchExecutor != null){
+            return dispatchExecutor;
+        }
+        if(virtualThreadDispatch){
+            if(VirtualThreadDispatchExecutor.isAvailable()){
+                return new VirtualThreadDispatchExecutor();
+            }
+            logger.warn("Virtual threads are not supported by JDK " + System.getProperty("java.version")
+                    + ", falling back to " + tuning.getBizThreads() + " platform threads");
+        }
+        return new DefaultDispatchExecutor(tuning.getBizThreads());
+    }
+
+    /**
+     * 将工厂上的配置应用到netty容器
+     * @param container netty容器
+     */
+    protected void configureContainer(NettyEmbeddedServletContainer container){
+        container.setStreamingRequestBody(streamingRequestBody);
+        container.setMaxContentLength(maxContentLength);
+        container.setMaxStreamingContentLength(maxStreamingContentLength);
+        container.setHttp2Enabled(http2Enabled);
+        container.setAcceptorCount(acceptorCount);
+        container.setTuning(tuning);
+        container.setLoadShedder(loadShedder);
+        container.setAsyncExecutor(newAsyncExecutor());
+    }
+
+    /**
+     * @return 所有servlet上下文共用的异步servlet执行器
+     */
+    protected AsyncExecutor newAsyncExecutor(){
+        return new AsyncExecutor(tuning.getAsyncThreads(), tuning.getAsyncQueueCapacity(), asyncRejectedExecutionHandler);
+    }
+
     /**
      * 新建servlet上下文
      * @return
@@ -116,6 +193,9 @@ public class NettyEmbeddedServletContainerFactory extends AbstractEmbeddedServle
                 getContextPath(),
                 getServerHeader(),
                 sessionCookieConfig);
+        servletContext.setCompressionConfig(loadCompressionConfig());
+        servletContext.setDispatcherCacheSize(dispatcherCacheSize);
+        servletContext.setFileSizeThreshold(fileSizeThreshold);
         //设置jar文件
         if(url != null){
             servletContext.setFile(url);
@@ -154,6 +234,21 @@ public class NettyEmbeddedServletContainerFactory extends AbstractEmbeddedServle
 
     }
 
+    /**
+     * 加载压缩配置（server.compression.*）
+     * @return 压缩配置
+     */
+    protected ServletCompressionConfig loadCompressionConfig(){
+        ServletCompressionConfig compressionConfig = new ServletCompressionConfig();
+        Compression compression = getCompression();
+        if(compression != null){
+            compressionConfig.setEnabled(compression.getEnabled());
+            compressionConfig.setMimeTypes(compression.getMimeTypes());
+            compressionConfig.setMinResponseSize(compression.getMinResponseSize());
+        }
+        return compressionConfig;
+    }
+
     /**
      * 加载session的cookie配置
      * @return cookie配置
@@ -166,6 +261,141 @@ public class NettyEmbeddedServletContainerFactory extends AbstractEmbeddedServle
         return sessionCookieConfig;
     }
 
+    public boolean isStreamingRequestBody() {
+        return streamingRequestBody;
+    }
+
+    /**
+     * @param streamingRequestBody 是否开启流式请求体模式（不聚合请求体，请求头到达即派发）
+     */
+    public void setStreamingRequestBody(boolean streamingRequestBody) {
+        this.streamingRequestBody = streamingRequestBody;
+    }
+
+    public int getMaxContentLength() {
+        return maxContentLength;
+    }
+
+    /**
+     * @param maxContentLength 聚合模式下请求体的最大长度（字节）
+     */
+    public void setMaxContentLength(int maxContentLength) {
+        this.maxContentLength = maxContentLength;
+    }
+
+    public long getMaxStreamingContentLength() {
+        return maxStreamingContentLength;
+    }
+
+    /**
+     * @param maxStreamingContentLength 流式请求体模式下请求体的最大长度（字节），默认100MB，超过时响应413并关闭连接，小于等于0表示不限制
+     */
+    public void setMaxStreamingContentLength(long maxStreamingContentLength) {
+        this.maxStreamingContentLength = maxStreamingContentLength;
+    }
+
+    public boolean isHttp2Enabled() {
+        return http2Enabled;
+    }
+
+    /**
+     * @param http2Enabled 是否接受明文HTTP/2（prior knowledge与Upgrade: h2c）
+     */
+    public void setHttp2Enabled(boolean http2Enabled) {
+        this.http2Enabled = http2Enabled;
+    }
+
+    public int getAcceptorCount() {
+        return acceptorCount;
+    }
+
+    /**
+     * @param acceptorCount 监听端口的server channel数量，大于1时在Linux epoll下以SO_REUSEPORT绑定多个channel，
+     *                      可以设为CPU核数；非epoll传输时忽略
+     */
+    public void setAcceptorCount(int acceptorCount) {
+        this.acceptorCount = acceptorCount;
+    }
+
+    public NettyServerTuning getTuning() {
+        return tuning;
+    }
+
+    /**
+     * @param tuning boss/worker/业务线程数与socket参数
+     */
+    public void setTuning(NettyServerTuning tuning) {
+        this.tuning = tuning;
+    }
+
+    public boolean isVirtualThreadDispatch() {
+        return virtualThreadDispatch;
+    }
+
+    /**
+     * @param virtualThreadDispatch 是否每个请求在一个虚拟线程上执行，需要JDK21及以上（以-Pjdk21编译），
+     *                              JDK不支持时退回tuning中业务线程数的平台线程
+     */
+    public void setVirtualThreadDispatch(boolean virtualThreadDispatch) {
+        this.virtualThreadDispatch = virtualThreadDispatch;
+    }
+
+    public DispatchExecutor getDispatchExecutor() {
+        return dispatchExecutor;
+    }
+
+    /**
+     * @param dispatchExecutor 自定义的业务执行器
+     */
+    public void setDispatchExecutor(DispatchExecutor dispatchExecutor) {
+        this.dispatchExecutor = dispatchExecutor;
+    }
+
+    public DispatchLoadShedder getLoadShedder() {
+        return loadShedder;
+    }
+
+    /**
+     * @param loadShedder 业务执行器的排队深度、排队时间限制，超过时响应503
+     */
+    public void setLoadShedder(DispatchLoadShedder loadShedder) {
+        this.loadShedder = loadShedder;
+    }
+
+    public RejectedExecutionHandler getAsyncRejectedExecutionHandler() {
+        return asyncRejectedExecutionHandler;
+    }
+
+    /**
+     * 异步servlet的线程数与队列长度在tuning中设置
+     * @param asyncRejectedExecutionHandler 异步servlet执行器队列满时的拒绝策略，只用于统计、告警，之后总是响应503（见AsyncExecutor）
+     */
+    public void setAsyncRejectedExecutionHandler(RejectedExecutionHandler asyncRejectedExecutionHandler) {
+        this.asyncRejectedExecutionHandler = asyncRejectedExecutionHandler;
+    }
+
+    public int getDispatcherCacheSize() {
+        return dispatcherCacheSize;
+    }
+
+    /**
+     * @param dispatcherCacheSize 每个servlet上下文按请求路径缓存的转发器（servlet与过滤器链）数量，按最近最少使用淘汰
+     */
+    public void setDispatcherCacheSize(int dispatcherCacheSize) {
+        this.dispatcherCacheSize = dispatcherCacheSize;
+    }
+
+    public long getFileSizeThreshold() {
+        return fileSizeThreshold;
+    }
+
+    /**
+     * @param fileSizeThreshold 表单字段与上传文件（multipart/form-data）超过该大小（字节）时写入临时文件，默认16000
+     */
+    public void setFileSizeThreshold(long fileSizeThreshold) {
+        this.fileSizeThreshold = fileSizeThreshold;
+    }
+
     @Override
     public void setResourceLoader(ResourceLoader resourceLoader) {
         this.resourceLoader = resourceLoader;
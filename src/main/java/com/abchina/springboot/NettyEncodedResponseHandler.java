@@ -0,0 +1,24 @@
+package com.abchina.springboot;
+
+import com.abchina.servlet.EncodedHttpResponse;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * 位于HttpCodec之前（靠近网络），预先编码好的响应（EncodedHttpResponse）在这里转换为ByteBuf直接写出
+ * HttpResponseEncoder在响应开始时不接受ByteBuf，所以它们以EncodedHttpResponse经过管线化排序、压缩处理器与HttpCodec
+ */
+@ChannelHandler.Sharable
+public class NettyEncodedResponseHandler extends ChannelHandlerAdapter {
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof EncodedHttpResponse) {
+            ctx.write(((EncodedHttpResponse) msg).content(), promise);
+            return;
+        }
+        ctx.write(msg, promise);
+    }
+}
@@ -0,0 +1,183 @@
+package com.abchina.springboot;
+
+import com.abchina.servlet.Http2StreamMessage;
+import com.abchina.servlet.ResponseWritability;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.AsciiString;
+import io.netty.handler.codec.UnsupportedMessageTypeException;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.DefaultHttp2Connection;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.HttpToHttp2ConnectionHandler;
+import io.netty.handler.codec.http2.HttpUtil;
+import io.netty.handler.codec.http2.InboundHttp2ToHttpAdapter;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+
+/**
+ * HTTP/2（h2c）连接处理器，替换HttpServerCodec的位置，之后的handler不变
+ * 入站：每个流的HEADERS/DATA帧聚合为带流ID请求头的FullHttpRequest，和HTTP/1.1的请求一样进入ServletCodec
+ * 出站：Http2StreamMessage按流ID转换为HEADERS/DATA帧，一个流出错只影响该流，不关闭整个连接
+ * DATA帧受每个流的流控窗口限制，窗口用完时在流控器中排队，channel.isWritable()看不到，
+ * 输出流按自己还没有写完的字节数挂起（见ResponseWritability）
+ */
+public class NettyHttp2ConnectionHandler extends HttpToHttp2ConnectionHandler implements ResponseWritability {
+
+    /**
+     * 入站请求上记录流ID的扩展请求头
+     */
+    public static final AsciiString STREAM_ID_HEADER = HttpUtil.ExtensionHeaderNames.STREAM_ID.text();
+
+    //流ID -> 最后一个还没有写出的DATA帧，只在事件循环上访问
+    private final IntObjectMap<ChannelFuture> pendingData = new IntObjectHashMap<>();
+
+    public NettyHttp2ConnectionHandler(int maxContentLength) {
+        this(new DefaultHttp2Connection(true), maxContentLength);
+    }
+
+    private NettyHttp2ConnectionHandler(Http2Connection connection, int maxContentLength) {
+        super(connection, new InboundHttp2ToHttpAdapter.Builder(connection)
+                .maxContentLength(maxContentLength)
+                .propagateSettings(false)
+                .build());
+    }
+
+    /**
+     * @param ctx 请求所在的handler上下文
+     * @param request 请求
+     * @return HTTP/2连接上的请求返回流ID，HTTP/1.1请求返回0（忽略客户端伪造的流ID请求头）
+     */
+    public static int getStreamId(ChannelHandlerContext ctx, HttpRequest request) {
+        if (ctx.pipeline().get(NettyHttp2ConnectionHandler.class) == null) {
+            return 0;
+        }
+        return request.headers().getInt(STREAM_ID_HEADER, 0);
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        //HTTP/2的DATA帧不经过压缩处理器，它记录的请求队列也不会再被消费
+        if (ctx.pipeline().get(NettyEmbeddedServletContainer.COMPRESSOR_HANDLER_NAME) != null) {
+            ctx.pipeline().remove(NettyEmbeddedServletContainer.COMPRESSOR_HANDLER_NAME);
+        }
+        //HTTP/2的各个流相互独立，响应按流ID写出，不需要排序
+        if (ctx.pipeline().get(NettyEmbeddedServletContainer.PIPELINING_HANDLER_NAME) != null) {
+            ctx.pipeline().remove(NettyEmbeddedServletContainer.PIPELINING_HANDLER_NAME);
+        }
+        ctx.channel().attr(ATTR_KEY).set(this);
+        super.handlerAdded(ctx);
+    }
+
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+        ctx.channel().attr(ATTR_KEY).compareAndSet(this, null);
+        super.handlerRemoved0(ctx);
+    }
+
+    /**
+     * DATA帧都可能在流控窗口外排队
+     */
+    @Override
+    public boolean isQueued(int streamId) {
+        return true;
+    }
+
+    /**
+     * Upgrade: h2c升级后，升级请求本身作为流1的请求派发
+     */
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof HttpServerUpgradeHandler.UpgradeEvent) {
+            FullHttpRequest request = ((HttpServerUpgradeHandler.UpgradeEvent) evt).upgradeRequest();
+            request.headers().setInt(STREAM_ID_HEADER, Http2CodecUtil.HTTP_UPGRADE_STREAM_ID);
+            ctx.fireChannelRead(request.retain());
+            ctx.fireChannelReadComplete();
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (!(msg instanceof Http2StreamMessage)) {
+            super.write(ctx, msg, promise);
+            return;
+        }
+        Http2StreamMessage streamMessage = (Http2StreamMessage) msg;
+        int streamId = streamMessage.streamId();
+        Object message = streamMessage.message();
+        //voidPromise上的失败会触发exceptionCaught并关闭连接，流已被客户端重置等单个流的失败只让写失败即可
+        if (promise.isVoid()) {
+            promise = ctx.newPromise();
+        }
+        if (!(message instanceof HttpResponse) && !(message instanceof HttpContent)) {
+            ReferenceCountUtil.release(message);
+            promise.setFailure(new UnsupportedMessageTypeException(message, HttpResponse.class, HttpContent.class));
+            return;
+        }
+
+        boolean endStream = message instanceof LastHttpContent;
+        if (endStream) {
+            //结束流时流会立即关闭，流控器中还没写出的DATA帧随之被丢弃，等它们写完再结束流
+            ChannelFuture previous = pendingData.get(streamId);
+            if (previous != null) {
+                ChannelPromise endPromise = promise;
+                previous.addListener((ChannelFutureListener) future -> {
+                    write(ctx, msg, endPromise);
+                    ctx.flush();
+                });
+                return;
+            }
+        }
+        if (message instanceof HttpResponse) {
+            Http2Headers headers;
+            try {
+                headers = toHttp2Headers((HttpResponse) message);
+            } catch (Exception e) {
+                ReferenceCountUtil.release(message);
+                promise.setFailure(e);
+                return;
+            }
+            boolean hasData = message instanceof HttpContent && ((HttpContent) message).content().isReadable();
+            if (!hasData) {
+                ReferenceCountUtil.release(message);
+                encoder().writeHeaders(ctx, streamId, headers, 0, endStream, promise);
+                return;
+            }
+            encoder().writeHeaders(ctx, streamId, headers, 0, false, ctx.newPromise());
+        }
+        //DATA帧写出后由encoder释放content，LastHttpContent的trailing headers不发送
+        encoder().writeData(ctx, streamId, ((HttpContent) message).content(), 0, endStream, promise);
+        if (!endStream && !promise.isDone()) {
+            pendingData.put(streamId, promise);
+            promise.addListener((ChannelFutureListener) future -> {
+                if (pendingData.get(streamId) == future) {
+                    pendingData.remove(streamId);
+                }
+            });
+        }
+    }
+
+    private static Http2Headers toHttp2Headers(HttpResponse response) throws Exception {
+        if (response instanceof FullHttpResponse) {
+            return HttpUtil.toHttp2Headers((FullHttpResponse) response);
+        }
+        FullHttpResponse headersOnly = new DefaultFullHttpResponse(response.protocolVersion(), response.status(),
+                Unpooled.EMPTY_BUFFER, false);
+        headersOnly.headers().set(response.headers());
+        return HttpUtil.toHttp2Headers(headersOnly);
+    }
+}
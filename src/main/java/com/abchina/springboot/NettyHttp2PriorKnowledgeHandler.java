@@ -0,0 +1,51 @@
+package com.abchina.springboot;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+
+import java.util.List;
+
+/**
+ * 识别直接以HTTP/2连接前言（PRI * HTTP/2.0...）开始的h2c连接（prior knowledge）
+ * 是则把HTTP/1.1的编解码、升级和压缩处理器换成HTTP/2连接处理器，否则原样交给HttpServerCodec
+ * 只检查连接最开始的字节，判断完即移除自身，已读到的字节由父类转交给后面的handler
+ */
+public class NettyHttp2PriorKnowledgeHandler extends ByteToMessageDecoder {
+
+    private static final ByteBuf CONNECTION_PREFACE = Http2CodecUtil.connectionPrefaceBuf();
+
+    private final int maxContentLength;
+
+    public NettyHttp2PriorKnowledgeHandler(int maxContentLength) {
+        this.maxContentLength = maxContentLength;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        int prefaceLength = CONNECTION_PREFACE.readableBytes();
+        int length = Math.min(in.readableBytes(), prefaceLength);
+        int readerIndex = in.readerIndex();
+        int prefaceIndex = CONNECTION_PREFACE.readerIndex();
+        for (int i = 0; i < length; i++) {
+            if (in.getByte(readerIndex + i) != CONNECTION_PREFACE.getByte(prefaceIndex + i)) { //HTTP/1.1请求
+                ctx.pipeline().remove(this);
+                return;
+            }
+        }
+        if (length < prefaceLength) { //前言还没有读完整
+            return;
+        }
+        ChannelPipeline pipeline = ctx.pipeline();
+        pipeline.addAfter(ctx.name(), NettyEmbeddedServletContainer.HTTP2_HANDLER_NAME, new NettyHttp2ConnectionHandler(maxContentLength));
+        //HttpServerCodec加入pipeline时已替换为解码器与编码器两个handler
+        pipeline.remove(HttpRequestDecoder.class);
+        pipeline.remove(HttpResponseEncoder.class);
+        pipeline.remove(NettyEmbeddedServletContainer.H2C_UPGRADE_HANDLER_NAME);
+        pipeline.remove(this);
+    }
+}
@@ -0,0 +1,58 @@
+package com.abchina.springboot;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Upgrade: h2c的升级处理
+ * 当前netty的Http2ServerUpgradeCodec只认草案的协议名h2c-16，客户端按RFC7540发送的是h2c，帧格式相同，这里用h2c再注册一次
+ */
+public class NettyHttp2ServerUpgradeCodec implements HttpServerUpgradeHandler.UpgradeCodec {
+
+    public static final String PROTOCOL_NAME = "h2c";
+
+    private final String protocol;
+    private final Http2ServerUpgradeCodec delegate;
+
+    private NettyHttp2ServerUpgradeCodec(String protocol, Http2ServerUpgradeCodec delegate) {
+        this.protocol = protocol;
+        this.delegate = delegate;
+    }
+
+    /**
+     * @param handlerName 升级后HTTP/2连接处理器在pipeline中的名称
+     * @param maxContentLength 每个流请求体的最大长度
+     * @return 同时支持h2c与h2c-16的升级处理，共用同一个连接处理器
+     */
+    public static List<HttpServerUpgradeHandler.UpgradeCodec> newUpgradeCodecs(String handlerName, int maxContentLength) {
+        Http2ServerUpgradeCodec codec = new Http2ServerUpgradeCodec(handlerName, new NettyHttp2ConnectionHandler(maxContentLength));
+        return Arrays.asList(new NettyHttp2ServerUpgradeCodec(PROTOCOL_NAME, codec), codec);
+    }
+
+    @Override
+    public String protocol() {
+        return protocol;
+    }
+
+    @Override
+    public Collection<String> requiredUpgradeHeaders() {
+        return delegate.requiredUpgradeHeaders();
+    }
+
+    @Override
+    public void prepareUpgradeResponse(ChannelHandlerContext ctx, FullHttpRequest upgradeRequest, FullHttpResponse upgradeResponse) {
+        delegate.prepareUpgradeResponse(ctx, upgradeRequest, upgradeResponse);
+    }
+
+    @Override
+    public void upgradeTo(ChannelHandlerContext ctx, FullHttpRequest upgradeRequest, FullHttpResponse upgradeResponse) {
+        delegate.upgradeTo(ctx, upgradeRequest, upgradeResponse);
+    }
+}
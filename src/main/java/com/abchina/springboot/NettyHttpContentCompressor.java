@@ -0,0 +1,96 @@
+package com.abchina.springboot;
+
+import com.abchina.servlet.EncodedHttpResponse;
+import com.abchina.servlet.ServletCompressionConfig;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * 按内容类型和最小长度压缩响应（gzip/deflate）
+ * 已经带有Content-Encoding的响应（如预压缩的静态资源）、HEAD请求的响应不压缩
+ *
+ * 父类遇到204/304响应时不会取出对应请求的Accept-Encoding，之后的响应会错位，它的队列也会在长连接上一直增长，
+ * 所以请求不交给父类，这里自己按请求顺序记录请求方法与Accept-Encoding，每个最终响应取出一个；
+ * 父类处理需要压缩判断的响应前要从它的队列取一个值，这时才放入一个占位的值，它的队列最多只有一个元素
+ */
+public class NettyHttpContentCompressor extends HttpContentCompressor {
+
+    //父类要求的Accept-Encoding占位，实际的值由beginEncode从requestQueue中取得
+    private static final HttpRequest PLACEHOLDER_REQUEST = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+
+    private final ServletCompressionConfig compressionConfig;
+    private final Queue<RequestInfo> requestQueue = new ArrayDeque<>();
+    private final List<Object> placeholderOut = new ArrayList<>(1);
+    private RequestInfo current;
+
+    public NettyHttpContentCompressor(ServletCompressionConfig compressionConfig) {
+        this.compressionConfig = compressionConfig;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, HttpRequest msg, List<Object> out) throws Exception {
+        requestQueue.offer(new RequestInfo(msg.method(), msg.headers().get(HttpHeaderNames.ACCEPT_ENCODING)));
+        out.add(ReferenceCountUtil.retain(msg));
+    }
+
+    /**
+     * 预先编码好的响应不压缩，也不经过父类，只取出对应请求的记录
+     */
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof EncodedHttpResponse) {
+            requestQueue.poll();
+            ctx.write(msg, promise);
+            return;
+        }
+        super.write(ctx, msg, promise);
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, HttpObject msg, List<Object> out) throws Exception {
+        if (msg instanceof HttpResponse) {
+            int code = ((HttpResponse) msg).status().code();
+            if (code >= 200) {
+                current = requestQueue.poll();
+            }
+            //与父类的isPassthru一致：1xx、204、304直接写出，其他的响应父类会从它的队列取一个值
+            if (code >= 200 && code != 204 && code != 304) {
+                super.decode(ctx, PLACEHOLDER_REQUEST, placeholderOut);
+                placeholderOut.clear();
+            }
+        }
+        super.encode(ctx, msg, out);
+    }
+
+    @Override
+    protected Result beginEncode(HttpResponse response, CharSequence acceptEncoding) throws Exception {
+        if (current == null || !compressionConfig.shouldCompress(response, current.method, current.acceptEncoding)) {
+            return null;
+        }
+        return super.beginEncode(response, current.acceptEncoding);
+    }
+
+    private static class RequestInfo {
+        final HttpMethod method;
+        final CharSequence acceptEncoding;
+
+        RequestInfo(HttpMethod method, CharSequence acceptEncoding) {
+            this.method = method;
+            this.acceptEncoding = acceptEncoding;
+        }
+    }
+}
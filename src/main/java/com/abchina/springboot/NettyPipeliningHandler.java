@@ -0,0 +1,220 @@
+package com.abchina.springboot;
+
+import com.abchina.servlet.EncodedHttpResponse;
+import com.abchina.servlet.HttpPipelinedMessage;
+import com.abchina.servlet.ResponseWritability;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * HTTP/1.1管线化：同一连接上的响应按请求到达的顺序写出，一次读事件内的响应合并为一次flush
+ *
+ * 入站：每个请求分配一个序号（从1开始），记录在channel上，之后的handler在同一次读事件中取用
+ * 出站：带序号的响应（HttpPipelinedMessage）轮到它的请求时才写出，否则在这里排队，直到前面的请求写完LastHttpContent；
+ * 不带序号的响应属于最后到达的请求（HttpObjectAggregator的413与100 Continue）；
+ * 异步servlet、在事件循环上直接响应的请求（304、503、不会阻塞的servlet）因此可以比前面的请求先处理完
+ * 排队的内容不在channel的出站缓冲中，水位线看不到：还没轮到的响应由输出流按自己还没有写完的字节数挂起（见ResponseWritability），
+ * 排队的内容轮到后写出，输出流随之被唤醒
+ *
+ * flush：读事件期间的flush推迟到channelReadComplete；其他时候（业务线程写完响应）只在事件循环上排一次flush任务，
+ * 之前已排队的写操作一起写出，多个响应合并为一次系统调用
+ *
+ * 位于压缩处理器之后（远离HttpCodec），压缩处理器看到的响应与请求顺序一致；HTTP/2连接上按流ID写出，升级时移除
+ */
+public class NettyPipeliningHandler extends ChannelHandlerAdapter implements ResponseWritability {
+
+    /**
+     * channel上当前请求的序号
+     */
+    public static final AttributeKey<Integer> SEQUENCE_ATTR_KEY = AttributeKey.valueOf(NettyPipeliningHandler.class, "sequence");
+
+    private int readSequence; //最后到达的请求的序号
+    private volatile int writeSequence = 1; //正在写出响应的请求序号，isQueued在业务线程上读取
+    //还没轮到的请求序号 -> 排队的写操作
+    private final IntObjectMap<Queue<PendingWrite>> pendingWrites = new IntObjectHashMap<>();
+    private boolean reading; //读事件期间
+    private boolean flushPending; //有推迟的flush
+    private ChannelHandlerContext ctx;
+    private final Runnable flushTask = () -> {
+        if (flushPending) {
+            flushPending = false;
+            ctx.flush();
+        }
+    };
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        ctx.channel().attr(ATTR_KEY).set(this);
+        super.handlerAdded(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        reading = true;
+        if (msg instanceof HttpRequest) {
+            ctx.channel().attr(SEQUENCE_ATTR_KEY).set(++readSequence);
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        //后面的handler在channelReadComplete中的flush也合并到这一次
+        ctx.fireChannelReadComplete();
+        reading = false;
+        if (flushPending) {
+            flushPending = false;
+            ctx.flush();
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        int sequence;
+        Object message;
+        if (msg instanceof HttpPipelinedMessage) {
+            HttpPipelinedMessage pipelinedMessage = (HttpPipelinedMessage) msg;
+            sequence = pipelinedMessage.sequence();
+            message = pipelinedMessage.message();
+        } else if (msg instanceof HttpResponse && readSequence >= writeSequence) {
+            //后面的HttpObjectAggregator自己写出的响应（请求体超长的413、100 Continue）不带序号，
+            //它们只会回应最后到达、正在聚合的请求
+            sequence = readSequence;
+            message = msg;
+        } else {
+            ctx.write(msg, promise);
+            return;
+        }
+        if (sequence > writeSequence) {
+            Queue<PendingWrite> queue = pendingWrites.get(sequence);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                pendingWrites.put(sequence, queue);
+            }
+            queue.add(new PendingWrite(message, promise));
+            return;
+        }
+        ctx.write(message, promise);
+        if (sequence == writeSequence && isLastMessage(message)) {
+            writeSequence++;
+            writePending(ctx);
+        }
+    }
+
+    /**
+     * 依次写出已经轮到的请求排队的响应
+     */
+    private void writePending(ChannelHandlerContext ctx) {
+        Queue<PendingWrite> queue;
+        while ((queue = pendingWrites.get(writeSequence)) != null) {
+            PendingWrite pendingWrite;
+            boolean last = false;
+            while (!last && (pendingWrite = queue.poll()) != null) {
+                ctx.write(pendingWrite.message, pendingWrite.promise);
+                last = isLastMessage(pendingWrite.message);
+            }
+            pendingWrites.remove(writeSequence);
+            if (!last) { //响应还没写完，之后的部分直接写出
+                break;
+            }
+            writeSequence++;
+        }
+    }
+
+    /**
+     * 轮到的请求直接写入channel，只受channel水位线限制；还没轮到的请求在这里排队
+     */
+    @Override
+    public boolean isQueued(int sequence) {
+        return sequence > writeSequence;
+    }
+
+    /**
+     * @return 是否为一个请求的最后一个响应消息，1xx的临时响应之后还有最终响应，预先编码好的响应是完整的
+     */
+    private static boolean isLastMessage(Object message) {
+        if (message instanceof EncodedHttpResponse) {
+            return true;
+        }
+        if (!(message instanceof LastHttpContent)) {
+            return false;
+        }
+        return !(message instanceof HttpResponse) || ((HttpResponse) message).status().code() >= 200;
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        if (reading) {
+            flushPending = true;
+        } else if (!flushPending) {
+            flushPending = true;
+            ctx.executor().execute(flushTask);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        releasePendingWrites(ctx);
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        releasePendingWrites(ctx);
+        ctx.channel().attr(SEQUENCE_ATTR_KEY).set(null);
+        ctx.channel().attr(ATTR_KEY).set(null);
+        super.handlerRemoved(ctx);
+    }
+
+    /**
+     * 连接关闭时释放排队的响应
+     */
+    private void releasePendingWrites(ChannelHandlerContext ctx) {
+        if (pendingWrites.isEmpty()) {
+            return;
+        }
+        ClosedChannelException cause = new ClosedChannelException();
+        for (Queue<PendingWrite> queue : pendingWrites.values()) {
+            for (PendingWrite pendingWrite : queue) {
+                ReferenceCountUtil.release(pendingWrite.message);
+                //voidPromise失败时会触发exceptionCaught，连接已经关闭，不再通知
+                if (pendingWrite.promise != ctx.voidPromise()) {
+                    pendingWrite.promise.tryFailure(cause);
+                }
+            }
+        }
+        pendingWrites.clear();
+    }
+
+    /**
+     * @param ctx 序号分配之后的handler上下文
+     * @return 当前请求的序号，没有安装本处理器（HTTP/2连接）时返回0
+     */
+    public static int getSequence(ChannelHandlerContext ctx) {
+        Integer sequence = ctx.channel().attr(SEQUENCE_ATTR_KEY).get();
+        return sequence == null ? 0 : sequence;
+    }
+
+    private static final class PendingWrite {
+        final Object message;
+        final ChannelPromise promise;
+
+        PendingWrite(Object message, ChannelPromise promise) {
+            this.message = message;
+            this.promise = promise;
+        }
+    }
+}
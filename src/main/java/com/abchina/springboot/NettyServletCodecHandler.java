@@ -1,51 +1,110 @@
 package com.abchina.springboot;
 
+import com.abchina.servlet.HttpPipelinedMessage;
 import com.abchina.servlet.ServletContext;
 import com.abchina.servlet.ServletHttpServletRequest;
 import com.abchina.servlet.ServletInputStream;
+import com.abchina.servlet.ServletOutputStream;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.*;
 
 /**
- * channel激活时， 开启一个新的输入流
- * 有信息/请求进入时，封装请求和响应对象，执行读操作
- * channel恢复时，关闭输入流，等待下一次连接到来
+ * 有请求头进入时，为本次请求开启一个新的输入流，封装请求对象并立即向后派发
+ * HTTP/2连接上每个流的请求是一个完整的FullHttpRequest，记下流ID，响应按流ID写回
+ * 有请求体（HttpContent）进入时，写入当前请求的输入流（聚合模式下请求头与请求体在同一个FullHttpRequest中）
+ * channel可写性变化时，通知还在写出的响应的输出流（在事件循环上处理，业务线程可能正挂起在输出流上）
+ * channel关闭时，关闭输入流
+ *
+ * 流式请求体模式下没有聚合器限制请求体大小，由这里限制：Content-Length超过上限的请求不派发，直接响应413并关闭连接；
+ * 分块传输的请求体在读入过程中超过上限时，servlet可能已经开始响应，只能关闭连接，读请求体的servlet得到IOException
  */
 public class NettyServletCodecHandler extends SimpleChannelInboundHandler<HttpObject> {
 
-    private ServletContext servletContext;
-    private ServletInputStream inputStream; // FIXME this feels wonky, need a better approach
+    private final long maxContentLength; //流式请求体的最大长度，小于等于0表示不限制（聚合模式由聚合器限制）
+    private ServletInputStream inputStream; //当前请求的输入流，每个请求一个
+    private long contentLength; //当前请求已经读入的请求体长度
 
-    public NettyServletCodecHandler(ServletContext servletContext) {
-        this.servletContext = servletContext;
+    public NettyServletCodecHandler() {
+        this(0);
     }
 
-    @Override
-    public void channelActive(ChannelHandlerContext ctx) throws Exception {
-        inputStream = new ServletInputStream(ctx.channel());
+    /**
+     * @param maxContentLength 流式请求体的最大长度（字节），小于等于0表示不限制
+     */
+    public NettyServletCodecHandler(long maxContentLength) {
+        this.maxContentLength = maxContentLength;
     }
 
     @Override
     protected void messageReceived(ChannelHandlerContext ctx, HttpObject msg) throws Exception {
         if (msg instanceof HttpRequest) {
             HttpRequest request = (HttpRequest) msg;
+            int streamId = NettyHttp2ConnectionHandler.getStreamId(ctx, request);
+
+            int sequence = streamId > 0 ? 0 : NettyPipeliningHandler.getSequence(ctx);
+
+            contentLength = 0;
+            if (maxContentLength > 0 && !(request instanceof FullHttpRequest)
+                    && HttpHeaderUtil.getContentLength(request, -1L) > maxContentLength) {
+                //之后到达的请求体直接丢弃
+                inputStream = null;
+                writeRequestEntityTooLarge(ctx, sequence);
+                return;
+            }
 
-            if (HttpHeaderUtil.is100ContinueExpected(request)) { //请求头包含Expect: 100-continue
-                ctx.write(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE), ctx.voidPromise());
+            //请求头包含Expect: 100-continue，聚合模式与HTTP/2的请求已经整个读入（聚合器已经响应过），不需要再响应
+            //临时响应同样排在前面请求的响应之后，但不结束本次请求
+            if (!(request instanceof FullHttpRequest) && HttpHeaderUtil.is100ContinueExpected(request)) {
+                FullHttpResponse continueResponse = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE);
+                ctx.writeAndFlush(sequence > 0 ? new HttpPipelinedMessage(sequence, continueResponse) : continueResponse, ctx.voidPromise());
             }
 
-            ServletHttpServletRequest servletRequest = new ServletHttpServletRequest(inputStream, servletContext, request);
+            inputStream = new ServletInputStream(ctx.channel());
+            ServletContext servletContext = NettyServletContextRouter.getServletContext(ctx); //路由选中的上下文
+            ServletHttpServletRequest servletRequest = ServletHttpServletRequest.newInstance(ctx, inputStream, servletContext, request);
+            servletRequest.setStreamId(streamId);
+            servletRequest.setSequence(sequence);
             ctx.fireChannelRead(servletRequest);
         }
 
-        if (msg instanceof HttpContent) { //EmptyLastHttpContent, DefaultLastHttpContent
-            inputStream.addContent((HttpContent) msg);
+        if (msg instanceof HttpContent && inputStream != null) { //EmptyLastHttpContent, DefaultLastHttpContent
+            HttpContent content = (HttpContent) msg;
+            contentLength += content.content().readableBytes();
+            if (maxContentLength > 0 && contentLength > maxContentLength && !(msg instanceof FullHttpRequest)) {
+                inputStream.close();
+                inputStream = null;
+                ctx.close();
+                return;
+            }
+            inputStream.addContent(content);
         }
     }
 
+    /**
+     * 请求体超过上限，响应413并关闭连接，请求体不再读入
+     */
+    private static void writeRequestEntityTooLarge(ChannelHandlerContext ctx, int sequence) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+        HttpHeaderUtil.setContentLength(response, 0);
+        HttpHeaderUtil.setKeepAlive(response, false);
+        ctx.writeAndFlush(sequence > 0 ? new HttpPipelinedMessage(sequence, response) : response)
+                .addListener(ChannelFutureListener.CLOSE);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        ServletOutputStream.notifyWritabilityChanged(ctx.channel());
+        super.channelWritabilityChanged(ctx);
+    }
+
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-        inputStream.close();
+        if (inputStream != null) {
+            inputStream.onChannelInactive();
+        }
+        ServletOutputStream.notifyChannelInactive(ctx.channel());
+        super.channelInactive(ctx);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,93 @@
+package com.abchina.springboot;
+
+import com.abchina.servlet.ServletContext;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.AttributeKey;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 多个jar共用一个监听端口时，按请求路径选择servlet上下文
+ * 部署路径最长匹配优先，没有匹配时交给根路径的上下文，没有根路径上下文时交给第一个部署的上下文
+ *
+ * 选中的上下文记录在channel上，之后的StaticResource、ServletCodec在同一次读事件中取用；
+ * 聚合模式下完整的请求要等请求体读完才继续传递，而下一个请求的请求头不会早于本请求的请求体到达，所以不会错位
+ */
+@ChannelHandler.Sharable
+public class NettyServletContextRouter extends ChannelHandlerAdapter {
+
+    /**
+     * channel上当前请求所属的servlet上下文
+     */
+    public static final AttributeKey<ServletContext> CHANNEL_ATTR_KEY = AttributeKey.valueOf(NettyServletContextRouter.class, "servletContext");
+
+    private final ServletContext defaultContext;
+    private final String[] paths; //部署路径，按长度降序
+    private final ServletContext[] servletContexts;
+
+    /**
+     * @param servletContexts 部署的servlet上下文，第一个为没有匹配时的默认上下文
+     */
+    public NettyServletContextRouter(Collection<ServletContext> servletContexts) {
+        List<ServletContext> sorted = new ArrayList<>(servletContexts);
+        ServletContext defaultContext = sorted.get(0);
+        sorted.sort(Comparator.comparingInt((ServletContext context) -> context.getDeployPath().length()).reversed());
+        this.paths = new String[sorted.size()];
+        this.servletContexts = new ServletContext[sorted.size()];
+        for (int i = 0; i < sorted.size(); i++) {
+            ServletContext servletContext = sorted.get(i);
+            paths[i] = servletContext.getDeployPath();
+            this.servletContexts[i] = servletContext;
+            if (paths[i].isEmpty()) {
+                defaultContext = servletContext;
+            }
+        }
+        this.defaultContext = defaultContext;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            ctx.channel().attr(CHANNEL_ATTR_KEY).set(route(((HttpRequest) msg).uri()));
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    /**
+     * @param uri 请求URI，可以带查询字符串
+     * @return 部署路径最长匹配的servlet上下文
+     */
+    public ServletContext route(String uri) {
+        for (int i = 0; i < paths.length; i++) {
+            String path = paths[i];
+            if (path.isEmpty()) {
+                break;
+            }
+            if (uri.startsWith(path)) {
+                //只在路径段的边界上匹配，/app不匹配/application
+                if (uri.length() == path.length()) {
+                    return servletContexts[i];
+                }
+                char c = uri.charAt(path.length());
+                if (c == '/' || c == '?') {
+                    return servletContexts[i];
+                }
+            }
+        }
+        return defaultContext;
+    }
+
+    /**
+     * @param ctx 路由之后的handler上下文
+     * @return 当前请求所属的servlet上下文
+     */
+    public static ServletContext getServletContext(ChannelHandlerContext ctx) {
+        return ctx.channel().attr(CHANNEL_ATTR_KEY).get();
+    }
+}
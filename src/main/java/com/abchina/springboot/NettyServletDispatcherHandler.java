@@ -1,43 +1,185 @@
 package com.abchina.springboot;
 
+import com.abchina.core.DispatchExecutor;
+import com.abchina.core.DispatchLoadShedder;
+import com.abchina.servlet.EncodedHttpResponse;
+import com.abchina.servlet.Http2StreamMessage;
+import com.abchina.servlet.HttpPipelinedMessage;
+import com.abchina.servlet.ServletAsyncContext;
 import com.abchina.servlet.ServletContext;
 import com.abchina.servlet.ServletHttpServletRequest;
 import com.abchina.servlet.ServletHttpServletResponse;
 import com.abchina.servlet.ServletRequestDispatcher;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderUtil;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.AttributeKey;
 
 import javax.servlet.DispatcherType;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
+ * 所有servlet上下文共用，请求在哪个上下文中处理由前面的路由决定
+ * 在事件循环上解析请求对应的servlet，交给连接绑定的业务执行器执行（见DispatchExecutor），HTTP/2的每个流单独分配执行器
  *
+ * 标记为不会阻塞的servlet（见ServletRegistration.setNonBlocking）直接在事件循环上执行，省去两次线程切换；
+ * 只限请求体已完整读入的请求（聚合模式或HTTP/2的FullHttpRequest），流式请求体要由同一个事件循环继续读入，在事件循环上等待会一直等到超时
+ *
+ * 业务执行器过载时（见DispatchLoadShedder）不执行servlet，直接响应503和Retry-After，响应预先编码好，所有连接共用
+ * 同一连接上前面管线化的请求还在排队或执行时，这里的响应由NettyPipeliningHandler排在它们之后写出
  */
 @ChannelHandler.Sharable
 public class NettyServletDispatcherHandler extends SimpleChannelInboundHandler<ServletHttpServletRequest> {
 
-    private ServletContext servletContext;
+    private static final AttributeKey<Executor> EXECUTOR_ATTR_KEY = AttributeKey.valueOf(NettyServletDispatcherHandler.class, "executor");
+
+    private final DispatchExecutor dispatchExecutor;
+    private final DispatchLoadShedder loadShedder;
+    //HTTP/1.1的503响应，保持连接与关闭连接两种，只编码一次
+    private final EncodedHttpResponse serviceUnavailable;
+    private final EncodedHttpResponse serviceUnavailableClose;
+    //HTTP/2的503响应，只读取不修改，所有流共用
+    private final FullHttpResponse http2ServiceUnavailable;
+
+    public NettyServletDispatcherHandler(DispatchExecutor dispatchExecutor, DispatchLoadShedder loadShedder) {
+        this.dispatchExecutor = dispatchExecutor;
+        this.loadShedder = loadShedder;
+        HttpHeaders headers = new DefaultHttpHeaders();
+        headers.setInt(HttpHeaderNames.RETRY_AFTER, loadShedder.getRetryAfterSeconds());
+        headers.setInt(HttpHeaderNames.CONTENT_LENGTH, 0);
+        this.http2ServiceUnavailable = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.SERVICE_UNAVAILABLE,
+                Unpooled.EMPTY_BUFFER, false);
+        http2ServiceUnavailable.headers().set(headers);
+        this.serviceUnavailable = EncodedHttpResponse.encode(HttpVersion.HTTP_1_1, HttpResponseStatus.SERVICE_UNAVAILABLE, headers);
+        headers.set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        this.serviceUnavailableClose = EncodedHttpResponse.encode(HttpVersion.HTTP_1_1, HttpResponseStatus.SERVICE_UNAVAILABLE, headers);
+    }
 
-    public NettyServletDispatcherHandler(ServletContext servletContext) {
-        super();
-        this.servletContext = servletContext;
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        ctx.channel().attr(EXECUTOR_ATTR_KEY).set(dispatchExecutor.newChannelExecutor());
+        super.handlerAdded(ctx);
     }
 
     @Override
     protected void messageReceived(ChannelHandlerContext ctx, ServletHttpServletRequest servletRequest) throws Exception {
-        ServletHttpServletResponse servletResponse = new ServletHttpServletResponse(ctx, servletContext,servletRequest);
+        ServletContext servletContext = servletRequest.getServletContext();
+        ServletRequestDispatcher dispatcher = servletContext.getRequestDispatcher(servletRequest.getRequestURI());
+        Executor executor = servletRequest.getStreamId() > 0 ? dispatchExecutor.newStreamExecutor() : ctx.channel().attr(EXECUTOR_ATTR_KEY).get();
+        servletRequest.setDispatchExecutor(executor);
+        if (dispatcher != null && dispatcher.isNonBlocking() && servletRequest.getNettyRequest() instanceof FullHttpRequest) {
+            dispatch(ctx, servletRequest, ServletHttpServletResponse.newInstance(ctx, servletContext, servletRequest), dispatcher);
+            return;
+        }
+        if (!loadShedder.admit()) {
+            writeServiceUnavailable(ctx, servletRequest);
+            return;
+        }
+        //响应对象也在事件循环上从对象池取出，业务线程上不取用对象池
+        ServletHttpServletResponse servletResponse = ServletHttpServletResponse.newInstance(ctx, servletContext, servletRequest);
+        long enqueueNanos = System.nanoTime();
+        try {
+            submit(ctx, executor, () -> {
+                if (loadShedder.onDequeue(enqueueNanos)) {
+                    //业务线程已经过载，503交给事件循环写出
+                    ctx.executor().execute(() -> {
+                        try {
+                            servletResponse.recycle();
+                            writeServiceUnavailable(ctx, servletRequest);
+                        } catch (Throwable cause) {
+                            exceptionCaught(ctx, cause);
+                        }
+                    });
+                } else {
+                    dispatch(ctx, servletRequest, servletResponse, dispatcher);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            loadShedder.onRejected();
+            servletResponse.recycle();
+            throw e;
+        }
+    }
 
+    private void submit(ChannelHandlerContext ctx, Executor executor, DispatchTask task) {
+        executor.execute(() -> {
+            try {
+                task.run();
+            } catch (Throwable cause) {
+                exceptionCaught(ctx, cause);
+            }
+        });
+    }
+
+    /**
+     * 响应503，不执行servlet
+     * 流式请求体可能还没有读完，这时关闭连接，不再读入剩余的请求体
+     */
+    private void writeServiceUnavailable(ChannelHandlerContext ctx, ServletHttpServletRequest servletRequest) throws IOException {
+        try {
+            HttpRequest request = servletRequest.getNettyRequest();
+            servletRequest.getNettyInputStream().close();
+            int streamId = servletRequest.getStreamId();
+            if (streamId > 0) { //HTTP/2连接不会因单个响应关闭
+                ctx.writeAndFlush(new Http2StreamMessage(streamId, http2ServiceUnavailable), ctx.voidPromise());
+                return;
+            }
+            boolean keepAlive = HttpHeaderUtil.isKeepAlive(request) && request instanceof FullHttpRequest;
+            EncodedHttpResponse response = keepAlive ? serviceUnavailable : serviceUnavailableClose;
+            int sequence = servletRequest.getSequence();
+            ChannelFuture future = ctx.writeAndFlush(sequence > 0 ? new HttpPipelinedMessage(sequence, response) : response);
+            if (!keepAlive) {
+                future.addListener(ChannelFutureListener.CLOSE);
+            }
+        } finally {
+            servletRequest.recycle();
+        }
+    }
+
+    /**
+     * 执行servlet并结束响应
+     * @param servletResponse 在事件循环上取出的响应
+     * @param dispatcher 请求路径对应的转发器，为null时响应404
+     */
+    private static void dispatch(ChannelHandlerContext ctx, ServletHttpServletRequest servletRequest, ServletHttpServletResponse servletResponse,
+                                 ServletRequestDispatcher dispatcher) throws Exception {
         try {
-            ServletRequestDispatcher dispatcher = servletContext.getRequestDispatcher(servletRequest.getRequestURI());
             if (dispatcher == null) {
                 servletResponse.sendError(HttpServletResponse.SC_NOT_FOUND);
                 return;
             }
             dispatcher.dispatch(servletRequest, servletResponse, DispatcherType.REQUEST);
         } finally {
-            if (!servletRequest.isAsyncStarted()) {
-                servletResponse.getOutputStream().close();
+            //开始异步处理后由异步上下文结束响应（见ServletAsyncContext.complete），请求与响应在complete之后归还对象池
+            ServletAsyncContext asyncContext = servletRequest.getAsyncContext();
+            if (asyncContext == null) {
+                try {
+                    servletResponse.finish();
+                    //释放未被servlet读取的请求体
+                    servletRequest.getNettyInputStream().close();
+                } finally {
+                    servletResponse.recycle();
+                    servletRequest.recycle();
+                }
+            } else {
+                asyncContext.endDispatch();
             }
         }
     }
@@ -47,8 +189,12 @@ public class NettyServletDispatcherHandler extends SimpleChannelInboundHandler<S
         ctx.flush();
     }
 
+    private interface DispatchTask {
+        void run() throws Exception;
+    }
+
     @Override
-    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         if(null != cause) {
             cause.printStackTrace();
         }
@@ -0,0 +1,109 @@
+package com.abchina.springboot;
+
+import com.abchina.servlet.Http2StreamMessage;
+import com.abchina.servlet.HttpPipelinedMessage;
+import com.abchina.servlet.ServletContext;
+import com.abchina.servlet.ServletRequestDispatcher;
+import com.abchina.servlet.ServletDefaultHttpServlet;
+import com.abchina.servlet.StaticResource;
+import com.abchina.servlet.StaticResourceManager;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+
+/**
+ * 在事件循环上应答静态资源的条件请求
+ * GET/HEAD请求带有If-None-Match或If-Modified-Since，映射到默认servlet且没有过滤器，资源已在缓存中并且客户端缓存仍然有效时，
+ * 直接响应304，请求不再进入业务线程池；其他请求原样向后传递
+ * 路径上有过滤器（如认证、CORS）时要经过过滤器，不能在这里应答，否则未认证的请求也能确认资源存在并拿到ETag
+ */
+public class NettyStaticResourceHandler extends ChannelHandlerAdapter {
+
+    private boolean discarding; //已应答304，丢弃本次请求剩余的请求体（非聚合模式）
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            HttpRequest request = (HttpRequest) msg;
+            ServletContext servletContext = NettyServletContextRouter.getServletContext(ctx);
+            StaticResource resource = getNotModifiedResource(servletContext, request);
+            if (resource != null) {
+                discarding = !(msg instanceof LastHttpContent);
+                ReferenceCountUtil.release(msg);
+                writeNotModified(ctx, servletContext, request, resource);
+                return;
+            }
+        } else if (discarding && msg instanceof HttpContent) {
+            discarding = !(msg instanceof LastHttpContent);
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    /**
+     * @return 可以直接响应304的静态资源，不满足条件返回null
+     */
+    private StaticResource getNotModifiedResource(ServletContext servletContext, HttpRequest request) throws ServletException {
+        if (!HttpMethod.GET.equals(request.method()) && !HttpMethod.HEAD.equals(request.method())) {
+            return null;
+        }
+        HttpHeaders headers = request.headers();
+        String ifNoneMatch = headers.getAndConvert(HttpHeaderNames.IF_NONE_MATCH);
+        String ifModifiedSince = headers.getAndConvert(HttpHeaderNames.IF_MODIFIED_SINCE);
+        if (ifNoneMatch == null && ifModifiedSince == null) {
+            return null;
+        }
+        StaticResourceManager resourceManager = servletContext.getStaticResourceManager();
+        if (resourceManager == null) {
+            return null;
+        }
+        String uri = request.uri();
+        StaticResource resource = resourceManager.getCachedResource(resourceManager.resolvePath(uri));
+        if (resource == null) {
+            return null;
+        }
+        resource = resource.select(headers.get(HttpHeaderNames.ACCEPT_ENCODING));
+        if (!resource.isNotModified(ifNoneMatch, ifModifiedSince)) {
+            return null;
+        }
+        //应用可能用自己的servlet覆盖了该路径，或者在该路径上配置了过滤器
+        ServletRequestDispatcher dispatcher = servletContext.getRequestDispatcher(uri);
+        if (dispatcher == null || dispatcher.hasFilters(DispatcherType.REQUEST, uri)) {
+            return null;
+        }
+        Servlet servlet = servletContext.getServlet(dispatcher.getServletName());
+        return servlet instanceof ServletDefaultHttpServlet ? resource : null;
+    }
+
+    private void writeNotModified(ChannelHandlerContext ctx, ServletContext servletContext, HttpRequest request, StaticResource resource) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+        HttpHeaders headers = response.headers();
+        headers.set(HttpHeaderNames.ETAG, resource.getETag());
+        headers.set(HttpHeaderNames.LAST_MODIFIED, resource.getLastModifiedHeader());
+        if (resource.isVaryByEncoding()) {
+            headers.set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        }
+        headers.set(HttpHeaderNames.DATE, StaticResource.formatHttpDate(System.currentTimeMillis()));
+        headers.set(HttpHeaderNames.SERVER, servletContext.getServerInfo());
+        int streamId = NettyHttp2ConnectionHandler.getStreamId(ctx, request);
+        if (streamId > 0) { //HTTP/2连接不会因单个响应关闭
+            ctx.writeAndFlush(new Http2StreamMessage(streamId, response), ctx.voidPromise());
+            return;
+        }
+        boolean keepAlive = HttpHeaderUtil.isKeepAlive(request);
+        HttpHeaderUtil.setKeepAlive(response, keepAlive);
+        int sequence = NettyPipeliningHandler.getSequence(ctx);
+        ChannelFuture future = ctx.writeAndFlush(sequence > 0 ? new HttpPipelinedMessage(sequence, response) : response);
+        if (!keepAlive) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+}
@@ -12,7 +12,6 @@ import java.io.InputStreamReader;
 import java.net.URL;
 import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.List;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
@@ -60,26 +59,19 @@ public class FileUtils {
 
 
     public static byte[] readFileFromJar(File file, String path) throws IOException {
-        JarFile jarFile = new JarFile(file.getAbsolutePath());
-        Enumeration<JarEntry> entries = jarFile.entries();
-        JarEntry configEntry = null;
-        while (entries.hasMoreElements()) {
-            JarEntry jarEntry = entries.nextElement();
-            String name = jarEntry.getName();
-            if (path.equals(name)) {
-                configEntry = jarEntry;
-                break;
+        try (JarFile jarFile = new JarFile(file.getAbsolutePath())) {
+            JarEntry configEntry = jarFile.getJarEntry(path);
+            if (configEntry == null) return null;
+            try (InputStream input = jarFile.getInputStream(configEntry)) {
+                byte[] buffer = new byte[4096];
+                int n;
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                while (-1 != (n = input.read(buffer))) {
+                    output.write(buffer, 0, n);
+                }
+                return output.toByteArray();
             }
         }
-        if (configEntry == null) return null;
-        InputStream input = jarFile.getInputStream(configEntry);
-        byte[] buffer = new byte[4096];
-        int n;
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        while (-1 != (n = input.read(buffer))) {
-            output.write(buffer, 0, n);
-        }
-        return output.toByteArray();
     }
 }
 
@@ -1,5 +1,10 @@
 package com.abchina.util;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 
@@ -13,6 +18,11 @@ public class HostUtil {
     private static boolean embedded;
     private static boolean is64bit = false;
 
+    //cgroup的CPU限制与CPU拓扑，第一次使用时读取
+    private static volatile double cpuQuota = Double.NaN;
+    private static volatile int cpusetCount;
+    private static volatile int numaNodeCount;
+
     static {
         embedded = AccessController.doPrivileged((PrivilegedAction<Boolean>) () -> {
             osName = System.getProperty("os.name").toLowerCase();
@@ -47,6 +57,134 @@ public class HostUtil {
     }
 
 
+    /**
+     * 读取cgroup的CPU配额（Kubernetes的limits.cpu），依次尝试cgroup v2的cpu.max与v1的cpu.cfs_quota_us
+     * @return 可用的CPU数（可以是小数，如1.5），没有限制或不是Linux时返回-1
+     */
+    public static double getCpuQuota() {
+        if (Double.isNaN(cpuQuota)) {
+            cpuQuota = readCpuQuota();
+        }
+        return cpuQuota;
+    }
+
+    /**
+     * @return cgroup cpuset限制的CPU数（taskset/cpuset.cpus），读取不到返回-1
+     */
+    public static int getCpusetCount() {
+        if (cpusetCount == 0) {
+            int count = countCpuList(readFirstLine("/sys/fs/cgroup/cpuset.cpus.effective"));
+            if (count < 0) {
+                count = countCpuList(readFirstLine("/sys/fs/cgroup/cpuset/cpuset.effective_cpus"));
+            }
+            if (count < 0) {
+                count = countCpuList(readFirstLine("/sys/fs/cgroup/cpuset/cpuset.cpus"));
+            }
+            cpusetCount = count;
+        }
+        return cpusetCount;
+    }
+
+    /**
+     * @return NUMA节点数，读取不到时为1
+     */
+    public static int getNumaNodeCount() {
+        if (numaNodeCount == 0) {
+            File[] nodes = new File("/sys/devices/system/node").listFiles(
+                    (dir, name) -> name.startsWith("node") && name.length() > 4 && Character.isDigit(name.charAt(4)));
+            numaNodeCount = nodes == null || nodes.length == 0 ? 1 : nodes.length;
+        }
+        return numaNodeCount;
+    }
+
+    /**
+     * 实际可用的CPU数：JVM看到的处理器数、cgroup的CPU配额（向上取整）、cpuset三者中的最小值
+     * 容器里不能只看宿主机的核数，否则线程数按宿主机算会严重超配
+     * @return 至少为1
+     */
+    public static int getEffectiveProcessors() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        double quota = getCpuQuota();
+        if (quota > 0) {
+            processors = Math.min(processors, (int) Math.ceil(quota));
+        }
+        int cpuset = getCpusetCount();
+        if (cpuset > 0) {
+            processors = Math.min(processors, cpuset);
+        }
+        return Math.max(1, processors);
+    }
+
+    private static double readCpuQuota() {
+        if (!isLinux()) {
+            return -1;
+        }
+        //cgroup v2: "max 100000"或"200000 100000"
+        String cpuMax = readFirstLine("/sys/fs/cgroup/cpu.max");
+        if (cpuMax != null) {
+            String[] parts = cpuMax.trim().split("\\s+");
+            if (parts.length == 2 && !"max".equals(parts[0])) {
+                return divide(parts[0], parts[1]);
+            }
+            return -1;
+        }
+        //cgroup v1
+        for (String dir : new String[]{"/sys/fs/cgroup/cpu", "/sys/fs/cgroup/cpu,cpuacct"}) {
+            String quota = readFirstLine(dir + "/cpu.cfs_quota_us");
+            String period = readFirstLine(dir + "/cpu.cfs_period_us");
+            if (quota != null && period != null) {
+                return divide(quota, period);
+            }
+        }
+        return -1;
+    }
+
+    private static double divide(String quota, String period) {
+        try {
+            long q = Long.parseLong(quota.trim());
+            long p = Long.parseLong(period.trim());
+            return q > 0 && p > 0 ? (double) q / p : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param cpuList 如"0-3,6,8-9"
+     * @return CPU数，格式错误或为空返回-1
+     */
+    private static int countCpuList(String cpuList) {
+        if (cpuList == null || cpuList.trim().isEmpty()) {
+            return -1;
+        }
+        int count = 0;
+        try {
+            for (String range : cpuList.trim().split(",")) {
+                int dashInx = range.indexOf('-');
+                if (dashInx > -1) {
+                    count += Integer.parseInt(range.substring(dashInx + 1).trim()) - Integer.parseInt(range.substring(0, dashInx).trim()) + 1;
+                } else {
+                    Integer.parseInt(range.trim());
+                    count++;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        return count;
+    }
+
+    private static String readFirstLine(String path) {
+        try {
+            for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.US_ASCII)) {
+                return line;
+            }
+        } catch (IOException | SecurityException e) {
+            //文件不存在，不是cgroup环境
+        }
+        return null;
+    }
+
     /**
      * Returns true if the platform is embedded.
      * @return 是否虚拟容器
@@ -1,6 +1,5 @@
 package com.abchina.util;
 
-import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.QueryStringDecoder;
 import io.netty.handler.codec.http.ServerCookieDecoder;
 import io.netty.handler.codec.http.multipart.*;
@@ -17,8 +16,6 @@ import java.util.*;
  */
 public class ServletUtil {
 
-    private static HttpDataFactory HTTP_DATA_FACTORY;
-
     /**
      * The only date format permitted when generating HTTP headers.
      */
@@ -32,6 +29,79 @@ public class ServletUtil {
     };
 
 
+    /**
+     * 规范化请求路径，用于servlet映射与转发器缓存的键：
+     * 去掉查询字符串与各段的路径参数（如;jsessionid=），合并连续的'/'，解析"."与".."
+     * 不以'/'开头的相对路径只去掉查询字符串
+     * @param uri 请求URI，可以带查询字符串
+     * @return 规范化的路径，".."超出根路径时返回null
+     */
+    public static String normalizePath(String uri) {
+        int end = uri.indexOf('?');
+        if (end < 0) {
+            end = uri.length();
+        }
+        if (!uri.startsWith("/") || !needsNormalize(uri, end)) {
+            return end == uri.length() ? uri : uri.substring(0, end);
+        }
+        StringBuilder path = new StringBuilder(end);
+        boolean trailingSlash = false;
+        int i = 0;
+        while (i < end) {
+            if (uri.charAt(i) == '/') {
+                trailingSlash = true;
+                i++;
+                continue;
+            }
+            int segmentEnd = i;
+            while (segmentEnd < end && uri.charAt(segmentEnd) != '/') {
+                segmentEnd++;
+            }
+            int nameEnd = uri.indexOf(';', i);
+            if (nameEnd < 0 || nameEnd > segmentEnd) {
+                nameEnd = segmentEnd;
+            }
+            int length = nameEnd - i;
+            if (length == 0 || (length == 1 && uri.charAt(i) == '.')) {
+                trailingSlash = true;
+            } else if (length == 2 && uri.charAt(i) == '.' && uri.charAt(i + 1) == '.') {
+                int parent = path.lastIndexOf("/");
+                if (parent < 0) {
+                    return null;
+                }
+                path.setLength(parent);
+                trailingSlash = true;
+            } else {
+                path.append('/').append(uri, i, nameEnd);
+                trailingSlash = false;
+            }
+            i = segmentEnd;
+        }
+        if (trailingSlash || path.length() == 0) {
+            path.append('/');
+        }
+        return path.toString();
+    }
+
+    /**
+     * @return 路径中是否有连续的'/'、以'.'开头的段或路径参数，常见的路径都没有，不需要复制
+     */
+    private static boolean needsNormalize(String uri, int end) {
+        for (int i = 0; i < end; i++) {
+            char c = uri.charAt(i);
+            if (c == ';') {
+                return true;
+            }
+            if (c == '/' && i + 1 < end) {
+                char next = uri.charAt(i + 1);
+                if (next == '/' || next == '.') {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public static String getCookieValue(Cookie[] cookies, String cookieName){
         if(cookies == null || cookieName == null) {
             return null;
@@ -49,6 +119,70 @@ public class ServletUtil {
         return null;
     }
 
+    /**
+     * 直接在Cookie请求头上查找一个cookie的值，不解码其他cookie，也不创建Cookie对象
+     * 与ServerCookieDecoder一样以';'分隔，值两端的空白与双引号去掉
+     * @param cookieHeader Cookie请求头的值
+     * @param cookieName cookie名称，区分大小写
+     * @return cookie的值，没有时返回null
+     */
+    public static String getCookieValue(CharSequence cookieHeader, String cookieName){
+        if(cookieHeader == null || cookieName == null) {
+            return null;
+        }
+        int length = cookieHeader.length();
+        int nameLength = cookieName.length();
+        int i = 0;
+        while (i < length) {
+            //跳过分隔符与空白
+            char c = cookieHeader.charAt(i);
+            if (c == ';' || c == ' ' || c == '\t') {
+                i++;
+                continue;
+            }
+            int nameStart = i;
+            while (i < length && (c = cookieHeader.charAt(i)) != '=' && c != ';') {
+                i++;
+            }
+            int nameEnd = i;
+            while (nameEnd > nameStart && cookieHeader.charAt(nameEnd - 1) == ' ') {
+                nameEnd--;
+            }
+            int valueStart = -1;
+            if (i < length && cookieHeader.charAt(i) == '=') {
+                valueStart = ++i;
+                while (i < length && cookieHeader.charAt(i) != ';') {
+                    i++;
+                }
+            }
+            if (valueStart < 0 || nameEnd - nameStart != nameLength || !regionMatches(cookieHeader, nameStart, cookieName)) {
+                continue;
+            }
+            int valueEnd = i;
+            while (valueStart < valueEnd && cookieHeader.charAt(valueStart) == ' ') {
+                valueStart++;
+            }
+            while (valueEnd > valueStart && cookieHeader.charAt(valueEnd - 1) == ' ') {
+                valueEnd--;
+            }
+            if (valueEnd - valueStart >= 2 && cookieHeader.charAt(valueStart) == '"' && cookieHeader.charAt(valueEnd - 1) == '"') {
+                valueStart++;
+                valueEnd--;
+            }
+            return cookieHeader.subSequence(valueStart, valueEnd).toString();
+        }
+        return null;
+    }
+
+    private static boolean regionMatches(CharSequence sequence, int offset, String name){
+        for (int i = 0; i < name.length(); i++) {
+            if (sequence.charAt(offset + i) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public static void decodeByUrl(Map<String,String[]> parameterMap, String uri){
         QueryStringDecoder decoder = new QueryStringDecoder(uri);
 
@@ -104,31 +238,31 @@ public class ServletUtil {
         return cookies;
     }
 
-    public static void decodeByBody(Map<String,String[]> parameterMap,HttpRequest httpRequest){
-        HttpPostRequestDecoder decoder = new HttpPostRequestDecoder(getHttpDataFactory(), httpRequest);
-
-        while (decoder.hasNext()){
-            InterfaceHttpData data = decoder.next();
-
+    /**
+     * 把已解码的表单字段追加到参数中，同名参数保留URL中的值在前
+     * 上传的文件（FileUpload）不作为参数，通过getParts()获取
+     */
+    public static void decodeByBody(Map<String,String[]> parameterMap, List<InterfaceHttpData> bodyHttpDatas) throws IOException {
+        for (InterfaceHttpData data : bodyHttpDatas) {
             /**
              * HttpDataType有三种类型
              * Attribute, FileUpload, InternalAttribute
              */
-            if (data.getHttpDataType() == InterfaceHttpData.HttpDataType.Attribute) {
-                Attribute attribute = (Attribute) data;
-                String name = attribute.getName();
-                String value;
-                try {
-                    value = attribute.getValue();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    value = "";
-                }
+            if (data.getHttpDataType() != InterfaceHttpData.HttpDataType.Attribute) {
+                continue;
+            }
+            Attribute attribute = (Attribute) data;
+            String name = attribute.getName();
+            String value = attribute.getValue();
+            String[] values = parameterMap.get(name);
+            if (values == null) {
                 parameterMap.put(name, new String[]{value});
+            } else {
+                String[] newValues = Arrays.copyOf(values, values.length + 1);
+                newValues[values.length] = value;
+                parameterMap.put(name, newValues);
             }
         }
-
-        decoder.destroy();
     }
 
     public static Long parseHeaderDate
@@ -147,15 +281,5 @@ public class ServletUtil {
         return date.getTime();
     }
 
-    private static HttpDataFactory getHttpDataFactory(){
-        if(HTTP_DATA_FACTORY == null){
-            synchronized (ServletUtil.class) {
-                if(HTTP_DATA_FACTORY == null) {
-                    HTTP_DATA_FACTORY = new DefaultHttpDataFactory(DefaultHttpDataFactory.MINSIZE); //Disk
-                }
-            }
-        }
-        return HTTP_DATA_FACTORY;
-    }
 
 }